@@ -5,7 +5,11 @@
 :: -port <number>: override default: -port '8090'.
 :: -auth <string>: require username and password. ex: -auth 'UserName:pass123!'.
 :: -log <file>: output logs to the given file and console.
+:: -logflush <millis>: write the logs in batches at most this often: -logflush '200'.
 :: -n <number>: override simultaneous requests: -n '256'.
+:: -n virtual: handle each request on a virtual thread (java 21+).
+:: -engine <jdk|nio>: http server implementation: -engine 'jdk'.
+:: -metrics <path>: serve metrics in prometheus format on the given path: -metrics '/metrics'.
 :: -write: enable uploading, and deleting files from the shared directory.
 
 REM ~ change working directory to this files parent
@@ -17,10 +21,7 @@ if exist "WebShare.jar" goto runserver
 :compile
 mkdir "out"
 echo compiling server ...
-javac -cp "lib/sceye-fi.jar" -d out src/kmz/webshare/*.java
-cd out
-jar xf "../lib/sceye-fi.jar"
-cd ..
+javac -d out src/kmz/webshare/*.java
 jar cvfe "WebShare.jar" kmz.webshare.WebShare -C out/ . mime.map FileList.html
 
 :runserver
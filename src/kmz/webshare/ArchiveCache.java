@@ -0,0 +1,327 @@
+package kmz.webshare;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Disk cache of generated archives, keyed by the fingerprint of the archived files.
+ * Each archive is built once, by a background job: concurrent requests for the same archive
+ * read the file as it grows, instead of compressing the files again.
+ * Builds run on their own threads, listed with the other jobs, so downloads do not wait behind deletes.
+ * Complete archives are kept until the size of the cache is exceeded, the least recently used are deleted first;
+ * an archive being built counts with the size of its files, and is not cached when it does not fit.
+ */
+public class ArchiveCache {
+
+	// archives built at the same time, each one compressing on all the cores.
+	private static final int BUILD_THREADS = 2;
+	private static final int MAX_QUEUED = 64;
+
+	// writes the content of an archive.
+	public interface Builder {
+
+		// @return the number of bytes written.
+		long build(OutputStream out) throws IOException;
+	}
+
+	private final File directory;
+	private final JobScheduler jobs;
+	private final ThreadPoolExecutor builders;
+	private final long maxSize;
+	// archives by key, least recently used first.
+	private final Map<String, Archive> archives = new LinkedHashMap<>(16, .75f, true);
+	// size of the complete archives, and the space reserved by the archives being built.
+	private long size = 0;
+
+	/**
+	 * Cache the archives in a new temporary directory, deleted when the application exits.
+	 * @param maxSize total size of the archives kept.
+	 * @param jobs runs the builds of the archives.
+	 */
+	public ArchiveCache(long maxSize, JobScheduler jobs) throws IOException {
+		final File directory = Files.createTempDirectory("webshare-archives").toFile();
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.jobs = jobs;
+		this.builders = new ThreadPoolExecutor(BUILD_THREADS, BUILD_THREADS, 1, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "archive");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.builders.allowCoreThreadTimeOut(true);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				File[] files = directory.listFiles();
+				if (files != null) {
+					for (File file : files) {
+						file.delete();
+					}
+				}
+				directory.delete();
+			}
+		}));
+	}
+
+	// check if an archive of files of the given size is worth caching, larger ones are better sent directly.
+	public boolean accepts(long length) {
+		return length <= this.maxSize;
+	}
+
+	/**
+	 * Get the archive, building it in the background if it is neither cached nor being built.
+	 * The returned archive must be closed after reading.
+	 * @param length size of the archived files, reserved in the cache while the archive is built.
+	 * @return the archive, null if it must be built and the cache is full, or the build queue is full.
+	 */
+	public Archive acquire(String key, long length, Builder builder) throws IOException {
+		Archive archive;
+		OutputStream file = null;
+		synchronized (this) {
+			archive = this.archives.get(key);
+			if (archive != null) {
+				archive.readers += 1;
+			}
+			else {
+				this.evict(length);
+				if (this.size + length > this.maxSize) {
+					return null;
+				}
+				// the file exists before the archive is found by other requests, which read it right away.
+				File path = new File(this.directory, key);
+				file = new FileOutputStream(path);
+				archive = new Archive(path, this.jobs.create("archive", key), length);
+				archive.readers += 1;
+				this.archives.put(key, archive);
+				this.size += length;
+			}
+		}
+		if (file == null) {
+			// the build of a found archive may still be refused by the queue, the files are sent directly then.
+			if (!archive.awaitSubmitted()) {
+				archive.close();
+				return null;
+			}
+			return archive;
+		}
+
+		final Archive building = archive;
+		final OutputStream out = file;
+		final String name = key;
+		final Builder task = builder;
+		try {
+			this.jobs.submit(building.job, new JobScheduler.Task() {
+				@Override
+				public void run(JobScheduler.Job job) throws IOException {
+					try {
+						task.build(building.new Output(out, job));
+						out.close();
+						building.finish();
+					}
+					catch (IOException | RuntimeException e) {
+						Utils.close(out);
+						building.fail(name, e instanceof IOException ? (IOException) e : new IOException(e));
+						throw e;
+					}
+				}
+			}, this.builders);
+		}
+		catch (IOException e) {
+			Utils.close(out);
+			building.fail(key, e);
+			building.close();
+			return null;
+		}
+		building.submitted();
+		return archive;
+	}
+
+	// delete the least recently used archives not being read, while the cache is too large to add the given length.
+	private synchronized void evict(long length) {
+		Iterator<Archive> iterator = this.archives.values().iterator();
+		while (this.size + length > this.maxSize && iterator.hasNext()) {
+			Archive archive = iterator.next();
+			if (archive.readers == 0 && archive.isComplete()) {
+				iterator.remove();
+				this.size -= archive.getLength();
+				archive.file.delete();
+			}
+		}
+	}
+
+	/**
+	 * An archive in the cache, complete or being built.
+	 */
+	public class Archive implements HttpServer.Content, Closeable {
+		private final File file;
+		// the job building the archive.
+		private final JobScheduler.Job job;
+		// space counted in the cache until the archive is complete.
+		private final long reserved;
+		// requests reading the archive, guarded by the cache.
+		private int readers = 0;
+		private long written = 0;
+		private boolean submitted = false;
+		private boolean complete = false;
+		private IOException error = null;
+
+		private Archive(File file, JobScheduler.Job job, long reserved) {
+			this.file = file;
+			this.job = job;
+			this.reserved = reserved;
+		}
+
+		public synchronized boolean isComplete() {
+			return this.complete;
+		}
+
+		public JobScheduler.Job getJob() {
+			return this.job;
+		}
+
+		// length of the complete archive.
+		public synchronized long getLength() {
+			return this.written;
+		}
+
+		// write a part of the complete archive.
+		@Override
+		public void transfer(long position, long count, OutputStream out) throws IOException {
+			try (FileChannel in = FileChannel.open(this.file.toPath())) {
+				Utils.transferFile(in, position, count, out);
+			}
+		}
+
+		/**
+		 * Write the whole archive, waiting for the content still being built.
+		 * @return the number of bytes written.
+		 */
+		public long tail(OutputStream out) throws IOException {
+			try (FileChannel in = FileChannel.open(this.file.toPath())) {
+				long position = 0;
+				while (true) {
+					long available;
+					boolean done;
+					synchronized (this) {
+						while (this.written <= position && !this.complete && this.error == null) {
+							this.wait();
+						}
+						if (this.error != null) {
+							throw new IOException("Archive build failed", this.error);
+						}
+						available = this.written;
+						done = this.complete;
+					}
+					if (available > position) {
+						Utils.transferFile(in, position, available - position, out);
+						position = available;
+					}
+					else if (done) {
+						return position;
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for the archive", e);
+			}
+		}
+
+		// done reading the archive.
+		@Override
+		public void close() {
+			synchronized (ArchiveCache.this) {
+				this.readers -= 1;
+			}
+			ArchiveCache.this.evict(0);
+		}
+
+		// wait until the build is queued, false if it was refused or failed.
+		private synchronized boolean awaitSubmitted() throws IOException {
+			try {
+				while (!this.submitted && this.error == null) {
+					this.wait();
+				}
+			}
+			catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for the archive", e);
+			}
+			return this.error == null;
+		}
+
+		private synchronized void submitted() {
+			this.submitted = true;
+			this.notifyAll();
+		}
+
+		private synchronized void grow(long length) {
+			this.written += length;
+			this.notifyAll();
+		}
+
+		private void finish() {
+			synchronized (this) {
+				this.complete = true;
+				this.notifyAll();
+			}
+			synchronized (ArchiveCache.this) {
+				// the actual size replaces the reserved space.
+				ArchiveCache.this.size += this.written - this.reserved;
+			}
+			ArchiveCache.this.evict(0);
+		}
+
+		private void fail(String key, IOException error) {
+			synchronized (this) {
+				this.error = error;
+				this.notifyAll();
+			}
+			synchronized (ArchiveCache.this) {
+				if (ArchiveCache.this.archives.get(key) == this) {
+					ArchiveCache.this.archives.remove(key);
+					ArchiveCache.this.size -= this.reserved;
+				}
+			}
+			this.file.delete();
+		}
+
+		// output of the builder, readers are notified as the file grows, and the job reports the bytes written.
+		private class Output extends FilterOutputStream {
+			private final JobScheduler.Job job;
+
+			Output(OutputStream out, JobScheduler.Job job) {
+				super(out);
+				this.job = job;
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				this.out.write(b);
+				Archive.this.grow(1);
+				this.job.progress(0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				this.out.write(b, off, len);
+				Archive.this.grow(len);
+				this.job.progress(0, len);
+			}
+		}
+	}
+}
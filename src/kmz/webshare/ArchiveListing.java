@@ -0,0 +1,152 @@
+package kmz.webshare;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Files and directories selected for an archive, in the order they are archived,
+ * with a fingerprint of the paths, sizes and modification times identifying the content of the archive.
+ */
+public class ArchiveListing implements Utils.FileProcessor {
+
+	// directories deeper than this are not archived.
+	private static final int MAX_DEPTH = 256;
+	private static final TreeWalker walker = new TreeWalker(MAX_DEPTH, Long.MAX_VALUE, Long.MAX_VALUE);
+
+	// a file or directory of the archive.
+	public static class Item {
+		// path in the archive, without trailing slash.
+		public final String name;
+		// the local file, null for directories.
+		public final Path path;
+		public final FileEntry file;
+
+		Item(String name, Path path, FileEntry file) {
+			this.name = name;
+			this.path = path;
+			this.file = file;
+		}
+	}
+
+	private final List<Item> items = new ArrayList<>();
+	private final MessageDigest digest;
+	private long size = 0;
+	private long lastModified = 0;
+	private String fingerprint;
+
+	private ArchiveListing() {
+		try {
+			this.digest = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// list the files, with all the content of the directories, at the top of the archive.
+	public static ArchiveListing create(File... files) throws IOException {
+		ArchiveListing listing = new ArchiveListing();
+		for (File file : files) {
+			listing.add(file.toPath());
+		}
+
+		StringBuilder fingerprint = new StringBuilder();
+		for (byte b : listing.digest.digest()) {
+			fingerprint.append(String.format("%02x", b));
+		}
+		listing.fingerprint = fingerprint.toString();
+		return listing;
+	}
+
+	public List<Item> getItems() {
+		return this.items;
+	}
+
+	// total size of the files.
+	public long getSize() {
+		return this.size;
+	}
+
+	// most recent modification of the files.
+	public long getLastModified() {
+		return this.lastModified;
+	}
+
+	// hash of the paths, sizes and modification times, the same files result in the same archive.
+	public String getFingerprint() {
+		return this.fingerprint;
+	}
+
+	private void add(Path path) throws IOException {
+		path = path.toAbsolutePath().normalize();
+		// the root of the file system has no name
+		String name = path.getFileName() != null ? path.getFileName().toString() : "root";
+
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		}
+		catch (IOException e) {
+			this.onError(name, path, e);
+			return;
+		}
+
+		// the names of the items are relative to the selected file: folders with the same content in other places are different archives.
+		this.digest.update(path.toString().getBytes(StandardCharsets.UTF_8));
+		this.digest.update((byte) 0);
+
+		FileEntry entry = new FileEntry(name, attributes);
+		if (!entry.directory) {
+			this.onFile(name, path, entry);
+			return;
+		}
+		this.onDirectory(name, entry);
+		String truncated = walker.walk(name, path, this);
+		if (truncated != null) {
+			WebShare.log("archive: %s: `%s`", truncated, path);
+		}
+	}
+
+	@Override
+	public void onFile(String path, Path local, FileEntry file) {
+		// leave out what can not be read, before anything is written.
+		if (!Files.isReadable(local)) {
+			WebShare.log("archive: skipping unreadable `%s`", local);
+			return;
+		}
+		this.addItem(new Item(path, local, file));
+		this.size += file.length;
+	}
+
+	@Override
+	public boolean onDirectory(String path, FileEntry file) {
+		this.addItem(new Item(path, null, file));
+		return true;
+	}
+
+	@Override
+	public void onError(String path, Path file, IOException error) {
+		// the archive contains what could be read.
+		WebShare.log(error, "archive: skipping `%s`", file);
+	}
+
+	private void addItem(Item item) {
+		this.items.add(item);
+		this.lastModified = Math.max(this.lastModified, item.file.lastModified);
+
+		this.digest.update(item.name.getBytes(StandardCharsets.UTF_8));
+		this.digest.update((byte) (item.path == null ? '/' : 0));
+		this.digest.update(Long.toString(item.file.length).getBytes(StandardCharsets.UTF_8));
+		this.digest.update((byte) 0);
+		this.digest.update(Long.toString(item.file.lastModified).getBytes(StandardCharsets.UTF_8));
+		this.digest.update((byte) 0);
+	}
+}
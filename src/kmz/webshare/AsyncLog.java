@@ -0,0 +1,189 @@
+package kmz.webshare;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logger writing messages to the console and optionally to a file from a background thread.
+ * Messages are queued in a bounded ring buffer and formatted and written in batches,
+ * the calling thread never waits for disk or console output: when the buffer is full messages are dropped,
+ * and the number of dropped messages is reported with the next batch.
+ */
+public class AsyncLog implements Runnable {
+
+	// stop collecting the batch after this many messages.
+	private static final int MAX_BATCH = 1024;
+	// time the application waits at exit for the batch being written.
+	private static final long STOP_TIMEOUT = 5000;
+	// queued at exit: the writer stops after writing the messages before it.
+	private static final Entry STOP = new Entry(null, null, null);
+
+	private final ArrayBlockingQueue<Entry> queue;
+	private final AtomicLong dropped = new AtomicLong();
+	private Thread writer;
+	private volatile long flushInterval;
+	private volatile boolean stopping = false;
+	private FileChannel file = null;
+
+	private static class Entry {
+		final String message;
+		final Object[] args;
+		final Throwable error;
+
+		Entry(Throwable error, String message, Object[] args) {
+			this.message = message;
+			this.args = args;
+			this.error = error;
+		}
+	}
+
+	private AsyncLog(int capacity, long flushInterval) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * Create the logger and start its writer thread.
+	 * @param capacity maximum number of messages waiting to be written.
+	 * @param flushInterval maximum time in milliseconds a message waits for other messages of the batch.
+	 */
+	public static AsyncLog start(int capacity, long flushInterval) {
+		final AsyncLog result = new AsyncLog(capacity, flushInterval);
+		result.writer = new Thread(result, "log-writer");
+		result.writer.setDaemon(true);
+		result.writer.start();
+
+		// write pending messages when the application exits, the writer finishes the batch it is collecting first.
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				result.stop();
+			}
+		}));
+		return result;
+	}
+
+	// also append messages to the given file.
+	public synchronized void setFile(File file) throws IOException {
+		Utils.close(this.file);
+		this.file = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	// queue a message, the message is formatted later, arguments should not be changed after logging.
+	public void log(Throwable error, String message, Object... args) {
+		if (!this.queue.offer(new Entry(error, message, args))) {
+			this.dropped.incrementAndGet();
+		}
+	}
+
+	// write all the queued messages, blocking the caller.
+	public void flush() {
+		List<Entry> batch = new ArrayList<>();
+		this.queue.drainTo(batch);
+		this.write(batch);
+	}
+
+	// stop the writer after it wrote the queued messages, then write the messages logged meanwhile.
+	private void stop() {
+		this.stopping = true;
+		try {
+			if (this.queue.offer(STOP, STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				this.writer.join(STOP_TIMEOUT);
+			}
+		}
+		catch (InterruptedException e) {
+			// exiting anyway.
+		}
+		this.flush();
+	}
+
+	@Override
+	public void run() {
+		List<Entry> batch = new ArrayList<>(MAX_BATCH);
+		while (true) {
+			try {
+				batch.add(this.queue.take());
+				long deadline = System.currentTimeMillis() + this.flushInterval;
+				while (batch.size() < MAX_BATCH && !this.stopping) {
+					long timeout = deadline - System.currentTimeMillis();
+					if (timeout <= 0) {
+						break;
+					}
+					Entry entry = this.queue.poll(timeout, TimeUnit.MILLISECONDS);
+					if (entry == null) {
+						break;
+					}
+					batch.add(entry);
+					this.queue.drainTo(batch, MAX_BATCH - batch.size());
+				}
+				this.write(batch);
+				if (this.stopping && batch.contains(STOP)) {
+					return;
+				}
+				batch.clear();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private synchronized void write(List<Entry> batch) {
+		StringWriter text = new StringWriter();
+		PrintWriter out = new PrintWriter(text);
+		long dropped = this.dropped.getAndSet(0);
+		if (dropped > 0) {
+			out.printf("log buffer full, dropped %d messages", dropped).println();
+		}
+		for (Entry entry : batch) {
+			try {
+				if (entry.message != null) {
+					out.printf(entry.message, entry.args).println();
+				}
+			}
+			catch (Exception e) {
+				out.println(entry.message);
+			}
+			if (entry.error != null) {
+				entry.error.printStackTrace(out);
+			}
+		}
+		out.flush();
+		if (text.getBuffer().length() == 0) {
+			return;
+		}
+
+		String result = text.toString();
+		PrintStream console = System.out;
+		console.print(result);
+		console.flush();
+
+		if (this.file != null) {
+			try {
+				ByteBuffer bytes = ByteBuffer.wrap(result.getBytes(StandardCharsets.UTF_8));
+				while (bytes.hasRemaining()) {
+					this.file.write(bytes);
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace(console);
+			}
+		}
+	}
+}
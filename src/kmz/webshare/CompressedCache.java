@@ -0,0 +1,97 @@
+package kmz.webshare;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Size bounded cache of gzip compressed file contents.
+ * Entries are keyed by the path and the modification time of the file,
+ * so a changed file is compressed again, the stale entry is evicted eventually.
+ */
+public class CompressedCache {
+
+	public static final String GZIP = "gzip";
+
+	private final long maxSize;
+	private final long maxFileSize;
+	private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, .75f, true);
+	private long size = 0;
+
+	/**
+	 * @param maxSize maximum number of compressed bytes kept in memory.
+	 * @param maxFileSize files larger than this are never cached.
+	 */
+	public CompressedCache(long maxSize, long maxFileSize) {
+		this.maxSize = maxSize;
+		this.maxFileSize = maxFileSize;
+	}
+
+	// check if a file is small enough to be cached.
+	public boolean isCacheable(File file) {
+		return file.length() <= this.maxFileSize;
+	}
+
+	// get the compressed content of the file, compressing it if it was not cached.
+	public byte[] get(File file) throws IOException {
+		String key = file.getPath() + ':' + file.lastModified() + ':' + file.length();
+		synchronized (this) {
+			byte[] result = this.entries.get(key);
+			if (result != null) {
+				return result;
+			}
+		}
+
+		// compress without holding the lock, concurrent misses might compress the same file twice.
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(file.length() / 2 + 64, this.maxFileSize));
+		GZIPOutputStream out = new GZIPOutputStream(bytes, 64 << 10);
+		Utils.transferFile(file, 0, file.length(), out);
+		out.close();
+		byte[] result = bytes.toByteArray();
+
+		synchronized (this) {
+			byte[] previous = this.entries.put(key, result);
+			if (previous != null) {
+				this.size -= previous.length;
+			}
+			this.size += result.length;
+			Iterator<Map.Entry<String, byte[]>> it = this.entries.entrySet().iterator();
+			while (this.size > this.maxSize && it.hasNext()) {
+				this.size -= it.next().getValue().length;
+				it.remove();
+			}
+		}
+		return result;
+	}
+
+	// check if the value of an Accept-Encoding header allows gzip content.
+	public static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String coding : acceptEncoding.split(",")) {
+			String[] params = coding.split(";");
+			String name = params[0].trim();
+			if (!GZIP.equalsIgnoreCase(name) && !"*".equals(name)) {
+				continue;
+			}
+			for (int i = 1; i < params.length; i += 1) {
+				String param = params[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						return Double.parseDouble(param.substring(2)) > 0;
+					}
+					catch (NumberFormatException e) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,227 @@
+package kmz.webshare;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * SHA-256 hashes of the uploaded files, computed while receiving them,
+ * valid while the size and the modification time of the file are unchanged.
+ * Files are also found by hash: with deduplication enabled, an upload identical to an existing file
+ * is replaced by a hard link to it, so the content is stored once.
+ */
+public class ContentIndex {
+
+	private static final int MAX_ENTRIES = 256 << 10;
+	private static final String DIGEST_SHA_256 = "sha-256=";
+
+	private static class Entry {
+		final String hash;
+		final long length;
+		final long lastModified;
+
+		Entry(String hash, long length, long lastModified) {
+			this.hash = hash;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+	// hashes by path, least recently used first.
+	private final Map<Path, Entry> entries = new LinkedHashMap<Path, Entry>(16, .75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+			if (this.size() <= MAX_ENTRIES) {
+				return false;
+			}
+			ContentIndex.this.unlink(eldest.getValue().hash, eldest.getKey());
+			return true;
+		}
+	};
+	// paths by hash, some of them may have been modified since.
+	private final Map<String, List<Path>> paths = new HashMap<>();
+	private volatile boolean deduplicate = false;
+
+	// replace uploads identical to an indexed file with hard links.
+	public void setDeduplicate(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+
+	public boolean isDeduplicate() {
+		return this.deduplicate;
+	}
+
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String toHex(byte[] digest) {
+		StringBuilder result = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			result.append(Character.forDigit((b >> 4) & 0xf, 16));
+			result.append(Character.forDigit(b & 0xf, 16));
+		}
+		return result.toString();
+	}
+
+	// value of the `Digest` header (RFC 3230) of a content with the hex encoded hash.
+	public static String toDigestHeader(String hash) {
+		byte[] digest = new byte[hash.length() / 2];
+		for (int i = 0; i < digest.length; i += 1) {
+			digest[i] = (byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), 16);
+		}
+		return DIGEST_SHA_256 + Base64.getEncoder().encodeToString(digest);
+	}
+
+	// hex encoded SHA-256 hash announced by a `Digest` header, null if there is none.
+	public static String parseDigestHeader(String value) {
+		if (value == null) {
+			return null;
+		}
+		for (String digest : value.split(",")) {
+			digest = digest.trim();
+			if (digest.regionMatches(true, 0, DIGEST_SHA_256, 0, DIGEST_SHA_256.length())) {
+				try {
+					byte[] hash = Base64.getDecoder().decode(digest.substring(DIGEST_SHA_256.length()));
+					return hash.length == 32 ? toHex(hash) : null;
+				}
+				catch (IllegalArgumentException e) {
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	// hex encoded hash of the file, null if unknown or the file was modified.
+	public String getHash(File file) {
+		return this.getHash(file.toPath(), file.length(), file.lastModified());
+	}
+
+	// hex encoded hash of the file with the given attributes, ex: from a listing.
+	public String getHash(Path path, long length, long lastModified) {
+		path = path.toAbsolutePath().normalize();
+		Entry entry;
+		synchronized (this) {
+			entry = this.entries.get(path);
+		}
+		if (entry == null || entry.length != length || entry.lastModified != lastModified) {
+			return null;
+		}
+		return entry.hash;
+	}
+
+	// record the hash of the file, just written.
+	public synchronized void put(File file, String hash) {
+		Path path = file.toPath().toAbsolutePath().normalize();
+		Entry previous = this.entries.put(path, new Entry(hash, file.length(), file.lastModified()));
+		if (previous != null) {
+			this.unlink(previous.hash, path);
+		}
+		List<Path> list = this.paths.get(hash);
+		if (list == null) {
+			list = new ArrayList<>(1);
+			this.paths.put(hash, list);
+		}
+		list.add(path);
+	}
+
+	// a file with the given content, null if none of the indexed files is unchanged.
+	public synchronized File find(String hash) {
+		List<Path> list = this.paths.get(hash);
+		if (list == null) {
+			return null;
+		}
+		for (Path path : list) {
+			File file = path.toFile();
+			Entry entry = this.entries.get(path);
+			if (entry != null && entry.length == file.length() && entry.lastModified == file.lastModified()) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Replace the file with a hard link to an existing copy of its content, if deduplication is enabled.
+	 * The file is replaced atomically, it is kept as it is if the link can not be created, ex: on another file system.
+	 * @return the existing copy, null if the file was not replaced.
+	 */
+	public File deduplicate(File file, String hash) {
+		if (!this.deduplicate) {
+			return null;
+		}
+		File copy = this.find(hash);
+		if (copy == null) {
+			return null;
+		}
+		File link = new File(file.getParentFile(), "." + file.getName() + "." + UUID.randomUUID() + ".link");
+		try {
+			if (Files.isSameFile(copy.toPath(), file.toPath())) {
+				return null;
+			}
+			Files.createLink(link.toPath(), copy.toPath());
+			Files.move(link.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			return copy;
+		}
+		catch (IOException | UnsupportedOperationException e) {
+			link.delete();
+			WebShare.log(e, "upload: can not link `%s` to `%s`", file, copy);
+			return null;
+		}
+	}
+
+	/**
+	 * Create the target as a hard link to an existing copy of the content, without receiving it again.
+	 * @return the existing copy, null if deduplication is disabled, or no copy of the content is known.
+	 */
+	public File link(File target, String hash) throws IOException {
+		if (!this.deduplicate) {
+			return null;
+		}
+		File copy = this.find(hash);
+		if (copy == null) {
+			return null;
+		}
+		try {
+			// linking never replaces an existing file.
+			Files.createLink(target.toPath(), copy.toPath());
+		}
+		catch (FileAlreadyExistsException e) {
+			throw e;
+		}
+		catch (IOException | UnsupportedOperationException e) {
+			// the content must be sent.
+			return null;
+		}
+		this.put(target, hash);
+		return copy;
+	}
+
+	private void unlink(String hash, Path path) {
+		List<Path> list = this.paths.get(hash);
+		if (list != null) {
+			list.remove(path);
+			if (list.isEmpty()) {
+				this.paths.remove(hash);
+			}
+		}
+	}
+}
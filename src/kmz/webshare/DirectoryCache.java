@@ -0,0 +1,342 @@
+package kmz.webshare;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Memory bounded cache of directory listings, holding the sorted entries with their attributes,
+ * and optionally the rendered html rows of the listing.
+ * Listings are invalidated by a `WatchService` watching the cached directories,
+ * when a directory can not be watched the modification time of the directory is checked,
+ * and the listing expires after a short time, as it does not change when a file is only modified.
+ */
+public class DirectoryCache implements Runnable {
+
+	// unwatched listings are listed again after this many milliseconds.
+	private static final long UNWATCHED_MAX_AGE = 2000;
+
+	// approximate memory used by a listing without entries.
+	private static final long LISTING_SIZE = 256;
+
+	public class Listing {
+		public final File directory;
+		public final FileEntry[] entries;
+		private final long lastModified;
+		// most recent modification of the directory and its entries, and total size of the entries.
+		private final long contentModified;
+		private final long contentLength;
+		private final long created;
+		private final WatchKey watchKey;
+		private volatile String rows = null;
+		// entries sorted by other orders, kept while the listing is cached.
+		private final Map<Comparator<FileEntry>, FileEntry[]> sorted = new HashMap<>();
+		private long size;
+
+		private Listing(File directory, FileEntry[] entries, long lastModified, WatchKey watchKey) {
+			this.directory = directory;
+			this.entries = entries;
+			this.lastModified = lastModified;
+			this.created = System.currentTimeMillis();
+			this.watchKey = watchKey;
+			this.size = LISTING_SIZE;
+			long contentModified = lastModified;
+			long contentLength = 0;
+			for (FileEntry entry : entries) {
+				this.size += entry.memorySize();
+				contentModified = Math.max(contentModified, entry.lastModified);
+				contentLength += entry.length;
+			}
+			this.contentModified = contentModified;
+			this.contentLength = contentLength;
+		}
+
+		// most recent modification of the directory, or of a file in it: files modified in place do not change the directory.
+		public long getLastModified() {
+			return this.contentModified;
+		}
+
+		// weak entity tag of the listing, changed by the modification of any entry.
+		public String getEntityTag() {
+			return String.format("W/\"%x-%x-%x\"", this.contentModified, this.entries.length, this.contentLength);
+		}
+
+		// the rendered rows of the listing, null if not yet rendered.
+		public String getRows() {
+			return this.rows;
+		}
+
+		// keep the rendered rows of the listing, if they fit in the cache.
+		public void setRows(String rows) {
+			synchronized (DirectoryCache.this) {
+				if (this.rows != null || DirectoryCache.this.entries.get(this.directory.getPath()) != this) {
+					return;
+				}
+				long size = 2L * rows.length();
+				if (this.size + size > DirectoryCache.this.maxSize / 4) {
+					return;
+				}
+				this.rows = rows;
+				this.size += size;
+				DirectoryCache.this.size += size;
+				DirectoryCache.this.evict();
+			}
+		}
+
+		/**
+		 * Get a window of the entries sorted in the given order.
+		 * Cached listings keep the sorted index for the next requests,
+		 * otherwise only the first `offset + limit` entries are kept while sorting.
+		 */
+		public FileEntry[] window(Comparator<FileEntry> order, int offset, int limit) {
+			if (order == FileEntry.DIRECTORIES_FIRST) {
+				return slice(this.entries, offset, limit);
+			}
+
+			boolean cached;
+			synchronized (DirectoryCache.this) {
+				FileEntry[] sorted = this.sorted.get(order);
+				if (sorted != null) {
+					return slice(sorted, offset, limit);
+				}
+				cached = DirectoryCache.this.entries.get(this.directory.getPath()) == this;
+			}
+
+			if (cached) {
+				FileEntry[] sorted = this.entries.clone();
+				Arrays.sort(sorted, order);
+				synchronized (DirectoryCache.this) {
+					if (DirectoryCache.this.entries.get(this.directory.getPath()) == this && !this.sorted.containsKey(order)) {
+						long size = 8L * sorted.length;
+						this.sorted.put(order, sorted);
+						this.size += size;
+						DirectoryCache.this.size += size;
+						DirectoryCache.this.evict();
+					}
+				}
+				return slice(sorted, offset, limit);
+			}
+
+			// bounded sort buffer: the heap keeps the first entries, the largest on top.
+			long keep = Math.min((long) offset + limit, this.entries.length);
+			if (offset >= keep) {
+				return new FileEntry[0];
+			}
+			PriorityQueue<FileEntry> heap = new PriorityQueue<>((int) keep + 1, Collections.reverseOrder(order));
+			for (FileEntry entry : this.entries) {
+				heap.add(entry);
+				if (heap.size() > keep) {
+					heap.poll();
+				}
+			}
+			FileEntry[] result = new FileEntry[(int) keep - offset];
+			for (int i = result.length - 1; i >= 0; i -= 1) {
+				result[i] = heap.poll();
+			}
+			return result;
+		}
+
+		private boolean isValid() {
+			if (this.directory.lastModified() != this.lastModified) {
+				return false;
+			}
+			return this.watchKey != null || System.currentTimeMillis() - this.created < UNWATCHED_MAX_AGE;
+		}
+	}
+
+	private final long maxSize;
+	private final LinkedHashMap<String, Listing> entries = new LinkedHashMap<>(16, .75f, true);
+	private final Map<WatchKey, String> watched = new HashMap<>();
+	private final WatchService watchService;
+	// incremented with each change, listings loaded during a change are not cached.
+	private long changes = 0;
+	private long size = 0;
+
+	/**
+	 * @param maxSize approximate maximum number of bytes used by the cached listings.
+	 */
+	public DirectoryCache(long maxSize) {
+		this.maxSize = maxSize;
+
+		WatchService watchService = null;
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+		}
+		catch (IOException | UnsupportedOperationException e) {
+			WebShare.log(e, "directory changes can not be watched, checking modification times");
+		}
+		this.watchService = watchService;
+	}
+
+	// invalidate the listings of changed directories in a background thread.
+	public void start() {
+		if (this.watchService != null) {
+			Thread watcher = new Thread(this, "directory-watcher");
+			watcher.setDaemon(true);
+			watcher.start();
+		}
+	}
+
+	/**
+	 * Get the sorted entries of the directory, listing it if it was not cached.
+	 * @return null if the content of the directory can not be listed.
+	 */
+	public Listing get(File directory) {
+		String path = directory.getPath();
+		long changes;
+		synchronized (this) {
+			Listing result = this.entries.get(path);
+			if (result != null) {
+				if (result.isValid()) {
+					return result;
+				}
+				this.remove(path);
+			}
+			changes = this.changes;
+		}
+
+		// watch before listing, so changes made while listing invalidate the result.
+		WatchKey watchKey = this.watch(directory);
+		long lastModified = directory.lastModified();
+		FileEntry[] entries;
+		try {
+			entries = list(directory.toPath());
+		}
+		catch (IOException e) {
+			return null;
+		}
+		Arrays.sort(entries, FileEntry.DIRECTORIES_FIRST);
+		Listing result = new Listing(directory, entries, lastModified, watchKey);
+
+		synchronized (this) {
+			if (changes != this.changes || result.size > this.maxSize / 4 || this.entries.containsKey(path)) {
+				// changed while listing, too large to be cached, or listed concurrently.
+				return result;
+			}
+			this.entries.put(path, result);
+			this.size += result.size;
+			if (watchKey != null) {
+				this.watched.put(watchKey, path);
+			}
+			this.evict();
+		}
+		return result;
+	}
+
+	// read the entries of the directory, with a single attribute read for each entry.
+	private static FileEntry[] list(Path directory) throws IOException {
+		List<FileEntry> result = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path path : stream) {
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				}
+				catch (IOException e) {
+					// ex: broken symbolic link
+					try {
+						attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					}
+					catch (IOException ignore) {
+						continue;
+					}
+				}
+				result.add(new FileEntry(path.getFileName().toString(), attributes));
+			}
+		}
+		catch (DirectoryIteratorException e) {
+			throw e.getCause();
+		}
+		return result.toArray(new FileEntry[result.size()]);
+	}
+
+	private static FileEntry[] slice(FileEntry[] entries, int offset, int limit) {
+		int start = Math.min(offset, entries.length);
+		int end = (int) Math.min((long) start + limit, entries.length);
+		return Arrays.copyOfRange(entries, start, end);
+	}
+
+	private WatchKey watch(File directory) {
+		if (this.watchService == null) {
+			return null;
+		}
+		try {
+			Path path = directory.toPath();
+			return path.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+		}
+		catch (IOException | ClosedWatchServiceException e) {
+			// ex: the limit of watched directories was reached.
+			return null;
+		}
+	}
+
+	private void remove(String path) {
+		Listing listing = this.entries.remove(path);
+		if (listing != null) {
+			this.size -= listing.size;
+			if (listing.watchKey != null && path.equals(this.watched.get(listing.watchKey))) {
+				this.watched.remove(listing.watchKey);
+				listing.watchKey.cancel();
+			}
+		}
+	}
+
+	private void evict() {
+		Iterator<Listing> it = this.entries.values().iterator();
+		while (this.size > this.maxSize && it.hasNext()) {
+			Listing listing = it.next();
+			it.remove();
+			this.size -= listing.size;
+			if (listing.watchKey != null && this.watched.remove(listing.watchKey) != null) {
+				listing.watchKey.cancel();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = this.watchService.take();
+			}
+			catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+
+			// the events are not needed, any change invalidates the whole listing.
+			key.pollEvents();
+			synchronized (this) {
+				this.changes += 1;
+				String path = this.watched.get(key);
+				if (path == null) {
+					// the listing was not cached.
+					key.cancel();
+					continue;
+				}
+				this.remove(path);
+			}
+			key.reset();
+		}
+	}
+}
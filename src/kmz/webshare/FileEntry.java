@@ -0,0 +1,70 @@
+package kmz.webshare;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+
+/**
+ * Attributes of a file in a directory listing, read once when the directory is listed.
+ */
+public class FileEntry {
+
+	// directories on top, then by name ignoring case.
+	public static final Comparator<FileEntry> DIRECTORIES_FIRST = new Comparator<FileEntry>() {
+		@Override
+		public int compare(FileEntry lhs, FileEntry rhs) {
+			if (lhs.directory != rhs.directory) {
+				return lhs.directory ? -1 : 1;
+			}
+			return lhs.name.compareToIgnoreCase(rhs.name);
+		}
+	};
+
+	// directories on top, then the largest files first.
+	public static final Comparator<FileEntry> BY_SIZE = new Comparator<FileEntry>() {
+		@Override
+		public int compare(FileEntry lhs, FileEntry rhs) {
+			if (lhs.directory != rhs.directory) {
+				return lhs.directory ? -1 : 1;
+			}
+			if (lhs.length != rhs.length) {
+				return Long.compare(rhs.length, lhs.length);
+			}
+			return lhs.name.compareToIgnoreCase(rhs.name);
+		}
+	};
+
+	// directories on top, then the most recently modified first.
+	public static final Comparator<FileEntry> BY_DATE = new Comparator<FileEntry>() {
+		@Override
+		public int compare(FileEntry lhs, FileEntry rhs) {
+			if (lhs.directory != rhs.directory) {
+				return lhs.directory ? -1 : 1;
+			}
+			if (lhs.lastModified != rhs.lastModified) {
+				return Long.compare(rhs.lastModified, lhs.lastModified);
+			}
+			return lhs.name.compareToIgnoreCase(rhs.name);
+		}
+	};
+
+	public final String name;
+	public final boolean directory;
+	public final long length;
+	public final long lastModified;
+
+	public FileEntry(String name, boolean directory, long length, long lastModified) {
+		this.name = name;
+		this.directory = directory;
+		this.length = length;
+		this.lastModified = lastModified;
+	}
+
+	public FileEntry(String name, BasicFileAttributes attributes) {
+		this(name, attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis());
+	}
+
+	// approximate memory used by the entry.
+	long memorySize() {
+		return 64 + 2L * this.name.length();
+	}
+}
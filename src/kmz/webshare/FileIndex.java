@@ -0,0 +1,549 @@
+package kmz.webshare;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * In memory index of the names of every file and directory under a root directory.
+ * The tree is kept in parallel arrays: the interned name, the parent, the first child and the next sibling of each node,
+ * searching scans the names, which takes a few milliseconds even for millions of files.
+ * The index is built by a background thread, then kept up to date with the events of a `WatchService`,
+ * a limited number of directories is watched: larger trees, or file systems which can not be watched, are rescanned periodically.
+ * Symbolic links are indexed, but not followed: links to directories are listed as directories, without their content.
+ */
+public class FileIndex implements Runnable {
+
+	// no more entries are indexed above this limit.
+	private static final int MAX_ENTRIES = 16 << 20;
+	// watches are shared with the other watchers of the user, ex: the directory cache.
+	private static final int MAX_WATCHES = 4096;
+	// rebuild interval of an index not kept up to date by watches.
+	private static final long RESCAN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	private static final int NONE = -1;
+	private static final int ROOT = 0;
+
+	private static final Comparator<Match> BY_PATH = new Comparator<Match>() {
+		@Override
+		public int compare(Match lhs, Match rhs) {
+			return lhs.path.compareToIgnoreCase(rhs.path);
+		}
+	};
+
+	public static class Match {
+		// path relative to the searched directory.
+		public final String path;
+		public final boolean directory;
+
+		Match(String path, boolean directory) {
+			this.path = path;
+			this.directory = directory;
+		}
+	}
+
+	private final Path root;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// nodes of the tree, removed nodes have a null name, and are reused.
+	private String[] names = new String[1024];
+	private String[] keys = new String[1024];
+	private int[] parents = new int[1024];
+	private int[] firstChild = new int[1024];
+	private int[] nextSibling = new int[1024];
+	private boolean[] directories = new boolean[1024];
+	// symbolic links to directories, their content is not indexed.
+	private boolean[] links = new boolean[1024];
+	private int size = 0;
+	private int count = 0;
+	private int free = NONE;
+	private boolean full = false;
+
+	private final Map<WatchKey, Integer> watched = new HashMap<>();
+	private final Map<Integer, WatchKey> watchKeys = new HashMap<>();
+	private WatchService watchService = null;
+	private boolean watchLimitReached = false;
+	private volatile boolean ready = false;
+
+	public FileIndex(Path root) {
+		this.root = root;
+	}
+
+	// build the index, and keep it updated in a background thread.
+	public void start() {
+		Thread indexer = new Thread(this, "file-index");
+		indexer.setDaemon(true);
+		indexer.setPriority(Thread.MIN_PRIORITY);
+		indexer.start();
+	}
+
+	// check if the initial scan is complete, searching a partial index returns partial results.
+	public boolean isReady() {
+		return this.ready;
+	}
+
+	@Override
+	public void run() {
+		try {
+			this.watchService = FileSystems.getDefault().newWatchService();
+		}
+		catch (IOException | UnsupportedOperationException e) {
+			WebShare.log(e, "file changes can not be watched, the index will not be updated");
+		}
+
+		long time = System.currentTimeMillis();
+		this.rebuild();
+		time = System.currentTimeMillis() - time;
+		WebShare.log("indexed %d files in %d ms", this.count, time);
+
+		long rescan = System.currentTimeMillis() + RESCAN_MILLIS;
+		while (true) {
+			try {
+				if (this.watchService == null) {
+					Thread.sleep(RESCAN_MILLIS);
+				}
+				else if (this.watchLimitReached) {
+					// watch the events of the watched directories until the next rescan.
+					WatchKey key = this.watchService.poll(Math.max(1, rescan - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+					if (key != null) {
+						this.update(key);
+					}
+				}
+				else {
+					this.update(this.watchService.take());
+				}
+			}
+			catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+
+			if (this.watchService == null || this.watchLimitReached) {
+				if (System.currentTimeMillis() >= rescan) {
+					this.rebuild();
+					rescan = System.currentTimeMillis() + RESCAN_MILLIS;
+				}
+			}
+			else {
+				rescan = System.currentTimeMillis() + RESCAN_MILLIS;
+			}
+		}
+	}
+
+	/**
+	 * Search the names of the files under the given directory.
+	 * A query with `*` or `?` is a glob matching the whole name, otherwise a substring of the name, ignoring case.
+	 * @param directory path relative to the root of the index, empty for the root.
+	 * @return the first matching paths in sorted order, null if the directory is not indexed.
+	 */
+	public List<Match> search(String directory, String query, int limit) {
+		Pattern glob = null;
+		String substring = null;
+		if (query.indexOf('*') >= 0 || query.indexOf('?') >= 0) {
+			glob = compileGlob(query);
+		}
+		else {
+			substring = query.toLowerCase();
+		}
+
+		// the first matches in sorted order, the last one on top.
+		PriorityQueue<Match> selected = new PriorityQueue<>(Math.max(1, Math.min(limit, 1024)), Collections.reverseOrder(BY_PATH));
+		this.lock.readLock().lock();
+		try {
+			int base = this.find(directory);
+			if (base == NONE || this.links[base]) {
+				return null;
+			}
+			for (int node = 0; node < this.size && limit > 0; node += 1) {
+				String key = this.keys[node];
+				if (key == null || node == base) {
+					continue;
+				}
+				if (substring != null ? !key.contains(substring) : !glob.matcher(key).matches()) {
+					continue;
+				}
+				String path = this.getPath(node, base);
+				if (path == null) {
+					continue;
+				}
+				Match match = new Match(path, this.directories[node]);
+				if (selected.size() < limit) {
+					selected.add(match);
+				}
+				else if (BY_PATH.compare(match, selected.peek()) < 0) {
+					selected.poll();
+					selected.add(match);
+				}
+			}
+		}
+		finally {
+			this.lock.readLock().unlock();
+		}
+
+		List<Match> result = new ArrayList<>(selected);
+		Collections.sort(result, BY_PATH);
+		return result;
+	}
+
+	// convert a glob to a case insensitive regular expression: `*` any characters, `?` a single character.
+	private static Pattern compileGlob(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int start = 0;
+		for (int i = 0; i < glob.length(); i += 1) {
+			char chr = glob.charAt(i);
+			if (chr == '*' || chr == '?') {
+				if (i > start) {
+					regex.append(Pattern.quote(glob.substring(start, i).toLowerCase()));
+				}
+				regex.append(chr == '*' ? ".*" : ".");
+				start = i + 1;
+			}
+		}
+		if (start < glob.length()) {
+			regex.append(Pattern.quote(glob.substring(start).toLowerCase()));
+		}
+		return Pattern.compile(regex.toString(), Pattern.DOTALL);
+	}
+
+	// find the node of a relative path.
+	private int find(String path) {
+		if (this.size == 0) {
+			return NONE;
+		}
+		int node = ROOT;
+		for (String name : path.split("/")) {
+			if (name.isEmpty() || ".".equals(name)) {
+				continue;
+			}
+			node = this.findChild(node, name);
+			if (node == NONE) {
+				return NONE;
+			}
+		}
+		return node;
+	}
+
+	private int findChild(int parent, String name) {
+		for (int child = this.firstChild[parent]; child != NONE; child = this.nextSibling[child]) {
+			if (name.equals(this.names[child])) {
+				return child;
+			}
+		}
+		return NONE;
+	}
+
+	// path of the node relative to the base, null if the node is not under the base.
+	private String getPath(int node, int base) {
+		Deque<String> names = new ArrayDeque<>();
+		for (; node != base; node = this.parents[node]) {
+			if (node == NONE || node == ROOT) {
+				return null;
+			}
+			names.push(this.names[node]);
+		}
+		StringBuilder result = new StringBuilder();
+		for (String name : names) {
+			if (result.length() > 0) {
+				result.append('/');
+			}
+			result.append(name);
+		}
+		return result.toString();
+	}
+
+	private void rebuild() {
+		this.lock.writeLock().lock();
+		try {
+			// searches return partial results until the scan is complete.
+			this.ready = false;
+			for (WatchKey key : this.watched.keySet()) {
+				key.cancel();
+			}
+			this.watched.clear();
+			this.watchKeys.clear();
+			this.watchLimitReached = false;
+			Arrays.fill(this.names, null);
+			Arrays.fill(this.keys, null);
+			this.size = 0;
+			this.count = 0;
+			this.free = NONE;
+			this.full = false;
+			this.add(NONE, "", true, false);
+		}
+		finally {
+			this.lock.writeLock().unlock();
+		}
+		this.scan(ROOT, this.root);
+		this.ready = true;
+	}
+
+	// index the content of a directory recursively.
+	private void scan(final int node, Path directory) {
+		try {
+			Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+				private final Deque<Integer> parents = new ArrayDeque<>();
+
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					int id = node;
+					if (!this.parents.isEmpty()) {
+						id = FileIndex.this.addChild(this.parents.peek(), dir.getFileName().toString(), true, false);
+						if (id == NONE) {
+							return FileVisitResult.TERMINATE;
+						}
+					}
+					// watch before listing, so no change is missed.
+					FileIndex.this.watch(id, dir);
+					this.parents.push(id);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					boolean link = attrs.isSymbolicLink() && Files.isDirectory(file);
+					if (FileIndex.this.addChild(this.parents.peek(), file.getFileName().toString(), link, link) == NONE) {
+						return FileVisitResult.TERMINATE;
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException error) {
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException error) {
+					this.parents.pop();
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch (IOException e) {
+			WebShare.log(e, "can not index: `%s`", directory);
+		}
+	}
+
+	private void watch(int node, Path directory) {
+		if (this.watchService == null || this.watchLimitReached) {
+			return;
+		}
+		if (this.watchKeys.size() >= MAX_WATCHES) {
+			this.watchLimitReached = true;
+			WebShare.log("can not watch more than %d directories, the index is rebuilt every %d minutes", MAX_WATCHES, TimeUnit.MILLISECONDS.toMinutes(RESCAN_MILLIS));
+			return;
+		}
+		try {
+			WatchKey key = directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+			this.lock.writeLock().lock();
+			try {
+				this.watched.put(key, node);
+				this.watchKeys.put(node, key);
+			}
+			finally {
+				this.lock.writeLock().unlock();
+			}
+		}
+		catch (IOException e) {
+			// ex: the limit of inotify watches was reached.
+			this.watchLimitReached = true;
+			WebShare.log(e, "can not watch more directories, the index is rebuilt every %d minutes: `%s`", TimeUnit.MILLISECONDS.toMinutes(RESCAN_MILLIS), directory);
+		}
+	}
+
+	// apply the changes of a watched directory.
+	private void update(WatchKey key) {
+		Integer node;
+		this.lock.readLock().lock();
+		try {
+			node = this.watched.get(key);
+		}
+		finally {
+			this.lock.readLock().unlock();
+		}
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				WebShare.log("too many file changes, rebuilding the index");
+				this.rebuild();
+				return;
+			}
+			if (node == null) {
+				continue;
+			}
+
+			String name = event.context().toString();
+			Path path = ((Path) key.watchable()).resolve(name);
+			if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+				this.remove(node, name);
+			}
+			else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+				if (Files.isSymbolicLink(path)) {
+					boolean link = Files.isDirectory(path);
+					this.addChild(node, name, link, link);
+				}
+				else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+					int child = this.addChild(node, name, true, false);
+					if (child != NONE) {
+						this.scan(child, path);
+					}
+				}
+				else {
+					this.addChild(node, name, false, false);
+				}
+			}
+		}
+		if (!key.reset() && node != null) {
+			// the directory was deleted.
+			this.lock.writeLock().lock();
+			try {
+				this.watched.remove(key);
+				this.watchKeys.remove(node);
+			}
+			finally {
+				this.lock.writeLock().unlock();
+			}
+		}
+	}
+
+	// add a child node, unless the parent already has one with the same name.
+	private int addChild(int parent, String name, boolean directory, boolean link) {
+		this.lock.writeLock().lock();
+		try {
+			if (this.names[parent] == null) {
+				// the parent was removed meanwhile.
+				return NONE;
+			}
+			int child = this.findChild(parent, name);
+			if (child != NONE) {
+				return child;
+			}
+			return this.add(parent, name, directory, link);
+		}
+		finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	private int add(int parent, String name, boolean directory, boolean link) {
+		int node = this.free;
+		if (node != NONE) {
+			this.free = this.nextSibling[node];
+		}
+		else {
+			if (this.size >= MAX_ENTRIES) {
+				if (!this.full) {
+					WebShare.log("too many files, the index is limited to %d entries", MAX_ENTRIES);
+					this.full = true;
+				}
+				return NONE;
+			}
+			if (this.size == this.names.length) {
+				this.grow();
+			}
+			node = this.size;
+			this.size += 1;
+		}
+
+		this.names[node] = name.intern();
+		this.keys[node] = name.toLowerCase().intern();
+		this.parents[node] = parent;
+		this.directories[node] = directory;
+		this.links[node] = link;
+		this.firstChild[node] = NONE;
+		this.nextSibling[node] = NONE;
+		if (parent != NONE) {
+			this.nextSibling[node] = this.firstChild[parent];
+			this.firstChild[parent] = node;
+		}
+		this.count += 1;
+		return node;
+	}
+
+	private void grow() {
+		int capacity = this.names.length * 2;
+		this.names = Arrays.copyOf(this.names, capacity);
+		this.keys = Arrays.copyOf(this.keys, capacity);
+		this.parents = Arrays.copyOf(this.parents, capacity);
+		this.firstChild = Arrays.copyOf(this.firstChild, capacity);
+		this.nextSibling = Arrays.copyOf(this.nextSibling, capacity);
+		this.directories = Arrays.copyOf(this.directories, capacity);
+		this.links = Arrays.copyOf(this.links, capacity);
+	}
+
+	// remove a child node with its subtree.
+	private void remove(int parent, String name) {
+		this.lock.writeLock().lock();
+		try {
+			if (this.names[parent] == null) {
+				return;
+			}
+			int previous = NONE;
+			int child = this.firstChild[parent];
+			while (child != NONE && !name.equals(this.names[child])) {
+				previous = child;
+				child = this.nextSibling[child];
+			}
+			if (child == NONE) {
+				return;
+			}
+			if (previous == NONE) {
+				this.firstChild[parent] = this.nextSibling[child];
+			}
+			else {
+				this.nextSibling[previous] = this.nextSibling[child];
+			}
+			this.release(child);
+		}
+		finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	// free the node and its subtree.
+	private void release(int node) {
+		List<Integer> released = new ArrayList<>();
+		released.add(node);
+		for (int i = 0; i < released.size(); i += 1) {
+			for (int child = this.firstChild[released.get(i)]; child != NONE; child = this.nextSibling[child]) {
+				released.add(child);
+			}
+		}
+		for (int id : released) {
+			WatchKey key = this.watchKeys.remove(id);
+			if (key != null) {
+				this.watched.remove(key);
+				key.cancel();
+			}
+			this.names[id] = null;
+			this.keys[id] = null;
+			this.parents[id] = NONE;
+			this.firstChild[id] = NONE;
+			this.nextSibling[id] = this.free;
+			this.free = id;
+			this.count -= 1;
+		}
+	}
+}
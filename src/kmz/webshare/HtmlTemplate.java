@@ -1,12 +1,12 @@
 package kmz.webshare;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.Writer;
 import java.text.ParseException;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,89 +22,62 @@ import java.util.regex.Pattern;
  * <!--.name/-->                 // hidden template variable
  * <!--.name='…'/-->             // hidden template variable with default value
  * <!--.name-->…<!--./name-->    // block variable with visible template content
- * TODO: javadoc
+ *
+ * A parsed template is immutable and can be shared between threads,
+ * the content is produced by a `Renderer`, writing the document in order directly to the output.
  */
 public class HtmlTemplate {
 	private static final boolean debugMode = false;
 
 	private static final Pattern templateBlock = Pattern.compile("<(?:!--)?[.](/)?([a-zA-Z0-9_]+)((='[^']+')?/)?(?:--)?>");
 
-	private final Map<String, List<HtmlTemplate>> variables = new HashMap<>();
-	private HtmlTemplate[] blocks = null;
-
-	private final StringBuffer value = new StringBuffer();
-	private String defValue = null;
-	private boolean visible = true;
-
-	public HtmlTemplate() {
+	// compiled part of the template: static text, variable or block.
+	private static class Node {
+		// name of the variable or block, null for static text.
+		final String name;
+		// static text, or the default value of the variable.
+		final String text;
+		// content of the block, null for text and variables.
+		final Node[] blocks;
+
+		Node(String name, String text, Node[] blocks) {
+			this.name = name;
+			this.text = text;
+			this.blocks = blocks;
+		}
 	}
 
-	public void parse(InputStream stream) throws ParseException {
-		class ScopeStack {
-
-			class Entry {
-				final String name;
-				final HtmlTemplate template;
-				final List<HtmlTemplate> content;
-
-				Entry(HtmlTemplate template, String name) {
-					this.name = name;
-					this.template = template;
-					this.content = new ArrayList<>();
-				}
-			}
-
-			private final Stack<Entry> stack;
+	private final Node root;
 
-			private HtmlTemplate pop() {
-				Entry item = stack.pop();
-				item.template.blocks = item.content.toArray(new HtmlTemplate[item.content.size()]);
-				return item.template;
-			}
-
-			private ScopeStack(HtmlTemplate root) {
-				stack = new Stack<>();
-				stack.push(new Entry(root, null));
-			}
+	private HtmlTemplate(Node root) {
+		this.root = root;
+	}
 
-			private void push(HtmlTemplate block, String name) {
-				add(block, name);
-				stack.push(new Entry(block, name));
-			}
+	public static HtmlTemplate parse(InputStream stream) throws ParseException {
+		class Scope {
+			final String name;
+			final List<Node> content = new ArrayList<>();
 
-			private void add(HtmlTemplate block) {
-				add(block, null);
+			Scope(String name) {
+				this.name = name;
 			}
 
-			private void add(HtmlTemplate block, String name) {
-				stack.peek().content.add(block);
-				if (!Utils.isNullOrEmpty(name)) {
-					HtmlTemplate tpl = stack.peek().template;
-					if (!tpl.variables.containsKey(name)) {
-						tpl.variables.put(name, new ArrayList<HtmlTemplate>());
-					}
-					tpl.variables.get(name).add(block);
-				}
-			}
-
-			private boolean empty() {
-				return stack.empty();
-			}
-
-			private String name() {
-				return stack.peek().name;
+			Node toNode() {
+				return new Node(this.name, null, this.content.toArray(new Node[this.content.size()]));
 			}
 		}
 
-		ScopeStack stack = new ScopeStack(this);
-		String fileContent = Utils.toString(stream);
-		Matcher matcher = templateBlock.matcher(Utils.coalesce(fileContent, ""));
+		Stack<Scope> stack = new Stack<>();
+		stack.push(new Scope(null));
+		String fileContent = Utils.coalesce(Utils.toString(stream), "");
+		Matcher matcher = templateBlock.matcher(fileContent);
+		int offset = 0;
 
 		while (matcher.find()) {
-
-			HtmlTemplate block = new HtmlTemplate();
-			matcher.appendReplacement(block.value, "");
-			stack.add(block);
+			if (matcher.start() > offset) {
+				stack.peek().content.add(new Node(null, fileContent.substring(offset, matcher.start()), null));
+			}
+			offset = matcher.end();
 
 			String blockEnd = matcher.group(1);
 			String blockName = matcher.group(2);
@@ -119,156 +92,146 @@ public class HtmlTemplate {
 				if (!Utils.isNullOrEmpty(blockValue)) {
 					throw new ParseException("Invalid block: " + matcher.group(), matcher.start());
 				}
-				if (stack.empty()) {
+				if (stack.size() < 2) {
 					throw new ParseException("Unexpected end of block", matcher.start());
 				}
-				if (!blockName.equals(stack.name())) {
-					throw new ParseException(String.format("Unmatched end of block: expected: %s / got: %s", stack.name(), blockName), matcher.start());
+				if (!blockName.equals(stack.peek().name)) {
+					throw new ParseException(String.format("Unmatched end of block: expected: %s / got: %s", stack.peek().name, blockName), matcher.start());
 				}
-				stack.pop();
+				Node block = stack.pop().toNode();
+				stack.peek().content.add(block);
 			}
 
 			// begin a template block or variable
-			else {
-				HtmlTemplate template = new HtmlTemplate();
-				if (!Utils.isNullOrEmpty(blockValue)) {
-					stack.add(template, blockName);
-					if (blockValue.equals("/")) {
-						if (debugMode) {
-							template.defValue = matcher.group();
-							template.value.append(template.defValue);
-						}
-					}
-					else {
-						template.defValue = blockValue.substring(2, blockValue.length() - 2);
-					}
+			else if (!Utils.isNullOrEmpty(blockValue)) {
+				String defValue = null;
+				if (!blockValue.equals("/")) {
+					defValue = blockValue.substring(2, blockValue.length() - 2);
 				}
-				else {
-					stack.push(template, blockName);
+				else if (debugMode) {
+					defValue = matcher.group();
 				}
+				stack.peek().content.add(new Node(blockName, defValue, null));
+			}
+			else {
+				stack.push(new Scope(blockName));
 			}
 		}
 
-		HtmlTemplate block = new HtmlTemplate();
-		matcher.appendTail(block.value);
-		block.value.trimToSize();
-		stack.add(block);
-
-		String blockName = stack.name();
-		if (stack.pop() != this && !stack.empty()) {
-			throw new ParseException("unclosed block: " + blockName, 0);
+		if (offset < fileContent.length()) {
+			stack.peek().content.add(new Node(null, fileContent.substring(offset), null));
 		}
-	}
 
-	// set a variable
-	private void set(String key, String value, boolean recursive) {
-		if (this.variables.containsKey(key)) {
-			for (HtmlTemplate var : this.variables.get(key)) {
-				var.value.setLength(0);
-				var.visible = true;
-				if (value == null) {
-					var.value.append(var.defValue);
-				}
-				else {
-					var.value.append(value);
-				}
-			}
-		}
-		if (recursive) {
-			for (HtmlTemplate vars : this.blocks) {
-				vars.set(key, value, true);
-			}
+		if (stack.size() != 1) {
+			throw new ParseException("unclosed block: " + stack.peek().name, fileContent.length());
 		}
+		return new HtmlTemplate(stack.pop().toNode());
 	}
 
-	// reset a variable to its default value
-	public void reset(String key) {
-		this.set(key, null, false);
-	}
-
-	// set the value of a variable
-	public void set(String key, String value) {
-		this.set(key, value, false);
+	// start rendering the template to the given output.
+	public Renderer render(Writer out) {
+		return new Renderer(this.root, out);
 	}
 
-	// set the value of every variable in the document.
-	public void setAll(String key, String value) {
-		this.set(key, value, true);
-	}
-
-	public void set(String key, boolean visible) {
-		List<HtmlTemplate> result = this.variables.get(key);
-		if (result != null) {
-			for (HtmlTemplate template : result) {
-				template.value.setLength(0);
-				template.visible = visible;
-				if (visible) {
-					template.value.append(template.defValue);
-				}
+	/**
+	 * Start rendering instances of a top level block to the given output, ex: to cache rendered rows.
+	 * @return null if the template has no such block.
+	 */
+	public Renderer render(String key, Writer out) {
+		for (Node node : this.root.blocks) {
+			if (node.blocks != null && key.equals(node.name)) {
+				return new Renderer(node, out);
 			}
 		}
+		return null;
 	}
 
-	// add a block
-	public HtmlTemplate add(String key) {
-		List<HtmlTemplate> blocks = this.variables.get(key);
-		if (blocks == null || blocks.size() != 1) {
-			return null;
+	/**
+	 * Render state of a single request, writing the template in document order.
+	 * Variables must be set before the output reaches them, blocks not requested are hidden.
+	 * Closing the root renderer writes the rest of the document and closes the output.
+	 */
+	public static class Renderer implements Closeable {
+		private final Node block;
+		private final Writer out;
+		private final Map<String, String> values = new HashMap<>();
+		private int position = 0;
+
+		private Renderer(Node block, Writer out) {
+			this.block = block;
+			this.out = out;
 		}
 
-		HtmlTemplate template = blocks.get(0);
-		// flush previous values.
-		try {
-			// StringBuffer should not throw IOException.
-			template.append(template.value);
-			template.visible = true;
-			template.reset();
+		// set the value of a variable, null resets it to the default value.
+		public void set(String key, String value) {
+			if (value == null) {
+				this.values.remove(key);
+			}
+			else {
+				this.values.put(key, value);
+			}
 		}
-		catch (IOException ignore) {}
-		return template;
-	}
 
-	public void reset() {
-		Collection<List<HtmlTemplate>> variables = this.variables.values();
-		for (List<HtmlTemplate> blocks : variables) {
-			for (HtmlTemplate block : blocks) {
-				block.value.setLength(0);
-				if (block.defValue != null) {
-					block.visible = true;
-					block.value.append(block.defValue);
-				}
-				else {
-					block.visible = false;
+		// show or hide a variable with its default value.
+		public void set(String key, boolean visible) {
+			if (visible) {
+				this.values.remove(key);
+			}
+			else {
+				this.values.put(key, "");
+			}
+		}
+
+		/**
+		 * Write the content up to the given block, and return the renderer of the block.
+		 * Each call of `write` on the returned renderer outputs a new instance of the block.
+		 * @return null if there is no such block after the current position.
+		 */
+		public Renderer block(String key) throws IOException {
+			Node[] blocks = this.block.blocks;
+			for (int i = this.position; i < blocks.length; i += 1) {
+				if (blocks[i].blocks != null && key.equals(blocks[i].name)) {
+					this.writeTo(i);
+					this.position = i + 1;
+					return new Renderer(blocks[i], this.out);
 				}
-				block.reset();
 			}
+			return null;
 		}
-	}
 
-	public Appendable append(Appendable out) throws IOException {
-		if (!debugMode && !this.visible) {
-			// hidden block
-			return out;
+		// write already rendered content at the current position.
+		public void append(CharSequence content) throws IOException {
+			this.out.append(content);
 		}
 
-		if (out != this.value) {
-			out.append(this.value);
+		// write the rest of the block, then reset the values for the next instance.
+		public void write() throws IOException {
+			this.writeTo(this.block.blocks.length);
+			this.position = 0;
+			this.values.clear();
 		}
-		if (this.blocks != null) {
-			for (HtmlTemplate blocks : this.blocks) {
-				blocks.append(out);
-			}
+
+		@Override
+		public void close() throws IOException {
+			this.write();
+			this.out.close();
 		}
-		return out;
-	}
 
-	@Override
-	public String toString() {
-		StringWriter result = new StringWriter();
-		try {
-			this.append(result);
+		private void writeTo(int end) throws IOException {
+			Node[] blocks = this.block.blocks;
+			for (; this.position < end; this.position += 1) {
+				Node node = blocks[this.position];
+				if (node.name == null) {
+					this.out.write(node.text);
+				}
+				else if (node.blocks == null) {
+					String value = this.values.containsKey(node.name) ? this.values.get(node.name) : node.text;
+					if (value != null) {
+						this.out.write(value);
+					}
+				}
+				// blocks not requested are hidden.
+			}
 		}
-		catch (IOException ignore) {}
-		return result.toString();
 	}
 }
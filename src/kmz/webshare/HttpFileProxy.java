@@ -1,36 +1,85 @@
 package kmz.webshare;
 
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
-import java.net.URL;
-import java.util.Collections;
-
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Serves the files of the shared directory, and forwards the other requests to the upstream server,
+ * saving the responses in the shared directory if write is enabled.
+ * The upstream is reached with a shared http client: connections are kept alive and reused by the next misses,
+ * http/2 is negotiated with https upstreams; request and response bodies are streamed.
+ */
 public class HttpFileProxy implements HttpHandler {
 
 	private static final boolean DEBUG = false;
 
+	private static final String ROUTE_CACHED = "proxy-cached";
+	private static final String ROUTE_UPSTREAM = "proxy-upstream";
+
+	// headers of a single connection, set by the client and the server themselves.
+	private static final Set<String> HOP_BY_HOP_HEADERS = new HashSet<>(Arrays.asList(
+			"connection", "keep-alive", "proxy-connection", "transfer-encoding", "te", "trailer", "upgrade",
+			"host", "content-length", "expect"
+	));
+	private static final int BUFFER_SIZE = 64 << 10;
+
 	private final String repo;
 	private final boolean readOnly;
 	private final HttpServer server;
-
-	public HttpFileProxy(WebShare server, String repo) {
+	private final HttpClient client;
+	// requests in flight to the upstream.
+	private final Semaphore upstreamRequests;
+	private final Duration timeout;
+
+	/**
+	 * @param poolSize maximum number of requests in flight to the upstream, and of idle connections kept open.
+	 * @param timeoutMillis time to connect to the upstream, and to receive the response headers.
+	 */
+	public HttpFileProxy(WebShare server, String repo, int poolSize, long timeoutMillis) {
 		this.repo = repo;
 		this.server = server;
 		this.readOnly = server.readOnly;
 
-		// customize headers
+		// customize headers, the host is the one of the upstream.
 		server.headerMap.put("Accept-encoding", "");	// gzipped content not supported
 		server.headerMap.put("Origin", repo);
-		server.headerMap.put("Host", repo);
+
+		// the size of the connection pool is read when the client is first used.
+		if (System.getProperty("jdk.httpclient.connectionPoolSize") == null) {
+			System.setProperty("jdk.httpclient.connectionPoolSize", Integer.toString(poolSize));
+		}
+		this.upstreamRequests = new Semaphore(poolSize);
+		this.timeout = Duration.ofMillis(timeoutMillis);
+		this.client = HttpClient.newBuilder()
+				// http/2 is negotiated during the tls handshake, cleartext upstreams are reached with http/1.1.
+				.version(repo.startsWith("https:") ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+				.connectTimeout(this.timeout)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.build();
 	}
 
 	protected static void writeResponse(HttpExchange context, int responseCode, String string) throws IOException {
@@ -40,40 +89,8 @@ public class HttpFileProxy implements HttpHandler {
 		context.getResponseBody().write(response);
 	}
 
-	private void writeResponse(HttpExchange context, int responseCode, File file) throws IOException {
-		FileInputStream in = null;
-		try {
-			String range = context.getRequestHeaders().getFirst(HttpServer.RANGE);
-			long start = 0, end = file.length();
-			if (range != null && range.startsWith("bytes=")) {
-				int startPos = 6;
-				int endPos = range.indexOf('-', 6);
-				start = Long.parseLong(range.substring(startPos, endPos));
-
-				if (endPos > 0 && endPos + 1 < range.length()) {
-					end = Math.min(end, Long.parseLong(range.substring(endPos + 1)));
-				}
-				String contentRange = String.format("bytes %d-%d/%d", start, end - 1, file.length());
-				context.getResponseHeaders().add(HttpServer.CONTENT_RANGE, contentRange);
-				WebShare.log("Range request: %d - %d: %s", start, end, range);
-				WebShare.log("Range response: %s", contentRange);
-			}
-			context.getResponseHeaders().add(HttpServer.CONTENT_TYPE, this.server.getContentType(file));
-			context.sendResponseHeaders(responseCode, file.length());
-
-			OutputStream out = context.getResponseBody();
-			in = new FileInputStream(file);
-			in.skip(start);
-			byte[] buff = new byte[1024];
-			while (start < end) {
-				int n = in.read(buff);
-				out.write(buff, 0, n);
-				start += n;
-			}
-		}
-		finally {
-			Utils.close(in);
-		}
+	private long writeResponse(HttpExchange context, int responseCode, File file) throws IOException {
+		return this.server.writeFile(context, responseCode, file, this.server.getContentType(file));
 	}
 
 	private static class CloneOutputStream extends OutputStream {
@@ -121,13 +138,27 @@ public class HttpFileProxy implements HttpHandler {
 	@Override
 	public void handle(HttpExchange context) {
 		long ts = System.currentTimeMillis();
+		long nanos = System.nanoTime();
+		long responseLength = -1;
 		String method = context.getRequestMethod();
 		String path = context.getRequestURI().getPath();
 		String query = context.getRequestURI().getQuery();
 
 		WebShare.log("handle: %s", path);
 		File file = server.getLocalPath(path);
+		server.metrics.activeRequests.incrementAndGet();
 		try {
+			if (server.writeMetrics(context)) {
+				method = HttpServer.ROUTE_METRICS;
+				return;
+			}
+
+			// paths escaping the cache directory.
+			if (file == null) {
+				writeResponse(context, HttpURLConnection.HTTP_FORBIDDEN, "Access denied");
+				return;
+			}
+
 			// try to fallback to index.html
 			if (HttpServer.METHOD_GET.equals(method)) {
 				if (file.exists() && file.isDirectory()) {
@@ -140,81 +171,135 @@ public class HttpFileProxy implements HttpHandler {
 
 			if (file.exists() && file.isFile()) {
 				// return it from disk no matter if POST or GET.
-				writeResponse(context, HttpURLConnection.HTTP_OK, file);
+				responseLength = writeResponse(context, HttpURLConnection.HTTP_OK, file);
 				method = HttpServer.METHOD_CACHED;
+				server.metrics.proxyHits.increment();
 				return;
 			}
 
 			// fallback to method directory
 			File file2 = server.getLocalPath(String.format("__%s/%s", method, path));
-			if (file2.exists() && file2.isFile()) {
+			if (file2 != null && file2.exists() && file2.isFile()) {
 				// return it from disk no matter if POST or GET.
-				writeResponse(context, HttpURLConnection.HTTP_OK, file2);
+				responseLength = writeResponse(context, HttpURLConnection.HTTP_OK, file2);
 				method = HttpServer.METHOD_CACHED;
+				server.metrics.proxyHits.increment();
 				return;
 			}
 
 			if (Utils.isNullOrEmpty(this.repo)) {
 				writeResponse(context, HttpURLConnection.HTTP_NOT_FOUND, "Not found");
+				return;
 			}
 
 			// send request to repo backend
-			URL url = new URL(this.repo + context.getRequestURI());
-			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-
-			conn.setRequestMethod(method);
-			copyRequestHeaders(context, conn);
-
-			// send request body
-			sendRequestBody(context, conn);
+			server.metrics.proxyMisses.increment();
+			if (!this.upstreamRequests.tryAcquire(this.timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+				server.metrics.proxyErrors.increment();
+				writeResponse(context, HttpURLConnection.HTTP_UNAVAILABLE, "Too many upstream requests");
+				return;
+			}
+			try {
+				responseLength = this.forward(context, file, method, path, query, ts);
+			}
+			finally {
+				this.upstreamRequests.release();
+			}
+		}
+		catch (Exception e) {
+			server.metrics.proxyErrors.increment();
+			WebShare.log(e, "Failed to download: `%s`", path);
+		}
+		finally {
+			context.close();
+			server.metrics.activeRequests.decrementAndGet();
+			String route = HttpServer.METHOD_CACHED.equals(method) ? ROUTE_CACHED : HttpServer.ROUTE_METRICS.equals(method) ? method : ROUTE_UPSTREAM;
+			server.metrics.record(route, context.getResponseCode(), (System.nanoTime() - nanos) / 1000, responseLength);
+			if (HttpServer.ROUTE_METRICS.equals(method)) {
+				return;
+			}
+			double time = (System.currentTimeMillis() - ts) / 1000.;
+			// the path is refused when it escapes the cache directory.
+			String target = file != null ? file.getAbsolutePath() : context.getRequestURI().toString();
+			WebShare.log("%s[%f]: %s -> %s", method, time, context.getRequestURI().toString(), target);
+		}
+	}
 
-			// get response code, headers, body
-			int responseCode = conn.getResponseCode();
-			sendResponseHeaders(context, conn, responseCode);
+	/**
+	 * Forward the request to the upstream, and stream the response to the client, saving it to the file if enabled.
+	 * Upstreams failing or not answering in time are reported with 502 or 504.
+	 * @return the number of bytes of the response body.
+	 */
+	private long forward(HttpExchange context, File file, String method, String path, String query, long ts) throws IOException, InterruptedException {
+		HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(this.repo + context.getRequestURI()))
+				.timeout(this.timeout)
+				.method(method, getRequestBody(context));
+		this.copyRequestHeaders(context, request);
+
+		HttpResponse<InputStream> response;
+		try {
+			response = this.client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+		}
+		catch (HttpTimeoutException e) {
+			server.metrics.proxyErrors.increment();
+			WebShare.log("upstream timeout: `%s`", path);
+			writeResponse(context, HttpURLConnection.HTTP_GATEWAY_TIMEOUT, "Upstream timeout");
+			return -1;
+		}
+		catch (IOException e) {
+			server.metrics.proxyErrors.increment();
+			WebShare.log(e, "upstream failed: `%s`", path);
+			writeResponse(context, HttpURLConnection.HTTP_BAD_GATEWAY, "Upstream failed");
+			return -1;
+		}
 
-			boolean cacheFile = !this.readOnly;
-			if (responseCode >= 300) {
-				cacheFile = false;
-			}
+		// get response code, headers, body
+		int responseCode = response.statusCode();
+		boolean cacheFile = !this.readOnly;
+		if (responseCode >= 300) {
+			cacheFile = false;
+		}
 
-			// read and save response body
-			InputStream in = null;
-			OutputStream out = null;
-			try {
-				out = context.getResponseBody();
-				if (cacheFile) {
-					if (!HttpServer.METHOD_GET.equals(method) || !Utils.isNullOrEmpty(query)) {
-						file = server.getLocalPath(String.format("__%s/%s.%08x", method, path, ts));
-					}
+		// read and save response body
+		long responseLength = -1;
+		// the body must be closed to release the connection.
+		InputStream in = response.body();
+		OutputStream out = null;
+		try {
+			sendResponseHeaders(context, response, method);
+			out = context.getResponseBody();
+			if (cacheFile) {
+				if (!HttpServer.METHOD_GET.equals(method) || !Utils.isNullOrEmpty(query)) {
+					file = server.getLocalPath(String.format("__%s/%s.%08x", method, path, ts));
+				}
+				// paths escaping the cache directory are forwarded without caching.
+				if (file != null) {
 					if (!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
 						throw new IOException("can not create path for: " + file.getParentFile().getCanonicalPath());
 					}
 					out = new CloneOutputStream(out, new FileOutputStream(file));
 				}
-
-				in = conn.getInputStream();
-				Utils.copyStream(out, in);
-			}
-			catch (Exception e) {
-				WebShare.log(e, "Error");
-			}
-			finally {
-				Utils.close(in);
-				Utils.close(out);
 			}
+
+			responseLength = copy(in, out);
+			server.metrics.proxyBytes.add(responseLength);
 		}
 		catch (Exception e) {
-			WebShare.log(e, "Failed to download: `%s`", path);
+			server.metrics.proxyErrors.increment();
+			WebShare.log(e, "Error");
 		}
 		finally {
-			context.close();
-			double time = (System.currentTimeMillis() - ts) / 1000.;
-			WebShare.log("%s[%f]: %s -> %s", method, time, context.getRequestURI().toString(), file.getAbsolutePath());
+			Utils.close(in);
+			Utils.close(out);
 		}
+		return responseLength;
 	}
 
-	private void copyRequestHeaders(HttpExchange context, HttpURLConnection conn) {
+	private void copyRequestHeaders(HttpExchange context, HttpRequest.Builder request) {
 		for (String key : context.getRequestHeaders().keySet()) {
+			if (HOP_BY_HOP_HEADERS.contains(key.toLowerCase(Locale.ROOT))) {
+				continue;
+			}
 
 			String original = context.getRequestHeaders().getFirst(key);
 			String value = server.remapHeader(key, original);
@@ -233,48 +318,74 @@ public class HttpFileProxy implements HttpHandler {
 				continue;
 			}
 
-			conn.setRequestProperty(key, value);
+			try {
+				request.setHeader(key, value);
+			}
+			catch (IllegalArgumentException e) {
+				// restricted by the http client.
+				if (DEBUG) {
+					WebShare.log("header [%s]: not forwarded", key);
+				}
+			}
 		}
 	}
 
-	private void sendResponseHeaders(HttpExchange context, HttpURLConnection conn, int responseCode) throws IOException {
-		for (String key : conn.getHeaderFields().keySet()) {
-			if (key == null) {
+	private static void sendResponseHeaders(HttpExchange context, HttpResponse<InputStream> response, String method) throws IOException {
+		Headers headers = context.getResponseHeaders();
+		for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+			String key = header.getKey();
+			// http/2 pseudo headers, and connection headers, are not forwarded.
+			if (key.startsWith(":") || HOP_BY_HOP_HEADERS.contains(key.toLowerCase(Locale.ROOT))) {
 				continue;
 			}
-			context.getResponseHeaders().put(key, conn.getHeaderFields().get(key));
+			headers.put(key, header.getValue());
+		}
+
+		int responseCode = response.statusCode();
+		OptionalLong length = response.headers().firstValueAsLong(HttpServer.CONTENT_LENGTH);
+		boolean empty = HttpServer.METHOD_HEAD.equals(method) || responseCode == HttpURLConnection.HTTP_NO_CONTENT || responseCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+		if (empty || (length.isPresent() && length.getAsLong() == 0)) {
+			context.sendResponseHeaders(responseCode, -1);
+		}
+		else {
+			// the body is sent chunked if the upstream did not send its length.
+			context.sendResponseHeaders(responseCode, length.isPresent() ? length.getAsLong() : 0);
 		}
-		context.getResponseHeaders().put(HttpServer.CONTENT_TYPE, Collections.singletonList(conn.getContentType()));
-		context.sendResponseHeaders(responseCode, conn.getHeaderFieldLong(HttpServer.CONTENT_LENGTH, 0));
-		//context.sendResponseHeaders(responseCode, responseCode == 304 ? -1 : 0);
 	}
 
-	private void sendRequestBody(HttpExchange context, HttpURLConnection conn) {
-		InputStream in = null;
-		OutputStream out = null;
-		try {
-			in = context.getRequestBody();
-			int firstByte = in.read();
-			if (firstByte != -1) {
-				conn.setDoOutput(true);
-				out = conn.getOutputStream();
-
-				out.write(firstByte);
-				int len;
-				byte[] buff = new byte[1024];
-				while ((len = in.read(buff)) > 0) {
-					out.write(buff, 0, len);
-					Thread.yield();
-				}
+	// stream the request body to the upstream, with its length if known.
+	private static HttpRequest.BodyPublisher getRequestBody(final HttpExchange context) {
+		Headers headers = context.getRequestHeaders();
+		long length = -1;
+		String contentLength = headers.getFirst(HttpServer.CONTENT_LENGTH);
+		if (contentLength != null) {
+			try {
+				length = Long.parseLong(contentLength.trim());
+			}
+			catch (NumberFormatException e) {
+				length = -1;
 			}
 		}
-		catch (Exception e) {
-			String path = context.getRequestURI().getPath();
-			WebShare.log(e, "Error forwarding request: `%s`", path);
+		if (length == 0 || (length < 0 && headers.getFirst("Transfer-Encoding") == null)) {
+			return HttpRequest.BodyPublishers.noBody();
 		}
-		finally {
-			Utils.close(in);
-			Utils.close(out);
+		HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.ofInputStream(new Supplier<InputStream>() {
+			@Override
+			public InputStream get() {
+				return context.getRequestBody();
+			}
+		});
+		return length > 0 ? HttpRequest.BodyPublishers.fromPublisher(body, length) : body;
+	}
+
+	private static long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long total = 0;
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, n);
+			total += n;
 		}
+		return total;
 	}
 }
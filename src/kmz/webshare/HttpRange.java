@@ -0,0 +1,198 @@
+package kmz.webshare;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Byte range of a resource, as requested using the `Range` header (RFC 7233).
+ */
+public class HttpRange {
+
+	// serve the whole content if a client asks for more ranges than this.
+	private static final int MAX_RANGES = 64;
+
+	private static final String BYTES_UNIT = "bytes";
+
+	public final long start;
+	public final long end;
+
+	public HttpRange(long start, long end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	// number of bytes in the range.
+	public long length() {
+		return this.end - this.start + 1;
+	}
+
+	// value of the Content-Range header for this range.
+	public String toContentRange(long length) {
+		return String.format("%s %d-%d/%d", BYTES_UNIT, this.start, this.end, length);
+	}
+
+	@Override
+	public String toString() {
+		return this.start + "-" + this.end;
+	}
+
+	// value of the Content-Range header for an unsatisfiable range request.
+	public static String toUnsatisfiedRange(long length) {
+		return String.format("%s */%d", BYTES_UNIT, length);
+	}
+
+	/**
+	 * Parse the value of a Range header for a resource of the given length.
+	 * Overlapping and adjacent ranges are merged, the result is sorted by offset.
+	 * @return null if the header must be ignored and the whole content sent,
+	 * an empty list if none of the requested ranges can be satisfied.
+	 */
+	public static List<HttpRange> parse(String header, long length) {
+		if (header == null) {
+			return null;
+		}
+
+		int eq = header.indexOf('=');
+		if (eq < 0 || !BYTES_UNIT.equalsIgnoreCase(header.substring(0, eq).trim())) {
+			// unknown range unit.
+			return null;
+		}
+
+		String[] specs = header.substring(eq + 1).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+
+		List<HttpRange> result = new ArrayList<>();
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			long start, end;
+			try {
+				if (first.isEmpty()) {
+					// suffix range: the last n bytes.
+					long suffix = Long.parseLong(last);
+					if (suffix < 0) {
+						return null;
+					}
+					if (suffix == 0 || length == 0) {
+						continue;
+					}
+					start = Math.max(0, length - suffix);
+					end = length - 1;
+				}
+				else {
+					start = Long.parseLong(first);
+					end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+					if (start < 0 || end < start) {
+						return null;
+					}
+					if (start >= length) {
+						continue;
+					}
+					end = Math.min(end, length - 1);
+				}
+			}
+			catch (NumberFormatException e) {
+				return null;
+			}
+			result.add(new HttpRange(start, end));
+		}
+
+		if (result.size() < 2) {
+			return result;
+		}
+
+		Collections.sort(result, new Comparator<HttpRange>() {
+			@Override
+			public int compare(HttpRange lhs, HttpRange rhs) {
+				return Long.compare(lhs.start, rhs.start);
+			}
+		});
+
+		List<HttpRange> merged = new ArrayList<>();
+		HttpRange current = result.get(0);
+		for (HttpRange range : result) {
+			if (range.start <= current.end + 1) {
+				current = new HttpRange(current.start, Math.max(current.end, range.end));
+			}
+			else {
+				merged.add(current);
+				current = range;
+			}
+		}
+		merged.add(current);
+		return merged;
+	}
+
+	/**
+	 * Check the value of an If-Range header against the current validators of the resource.
+	 * Entity tags must match using the strong comparison, dates must match exactly.
+	 * @return true if the range request can be served, false if the whole content must be sent.
+	 */
+	public static boolean checkIfRange(String ifRange, String entityTag, long lastModified) {
+		if (ifRange == null) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("W/")) {
+			return false;
+		}
+		if (ifRange.startsWith("\"")) {
+			return ifRange.equals(entityTag);
+		}
+		long date = Utils.parseHttpDate(ifRange);
+		return date >= 0 && date / 1000 == lastModified / 1000;
+	}
+
+	/**
+	 * Parse the value of a Content-Range header sent with a part of a resource, ex: `bytes 0-1023/4096`.
+	 * @return null if the header is not valid, or the complete length of the resource is not given.
+	 */
+	public static HttpRange parseContentRange(String header) {
+		long[] values = parseContentRangeValues(header);
+		return values == null ? null : new HttpRange(values[0], values[1]);
+	}
+
+	// complete length of the resource from a Content-Range header, -1 if the header is not valid.
+	public static long parseCompleteLength(String header) {
+		long[] values = parseContentRangeValues(header);
+		return values == null ? -1 : values[2];
+	}
+
+	private static long[] parseContentRangeValues(String header) {
+		if (header == null) {
+			return null;
+		}
+		header = header.trim();
+		if (!header.regionMatches(true, 0, BYTES_UNIT + " ", 0, BYTES_UNIT.length() + 1)) {
+			return null;
+		}
+		String spec = header.substring(BYTES_UNIT.length() + 1).trim();
+		int dash = spec.indexOf('-');
+		int slash = spec.indexOf('/');
+		if (dash <= 0 || slash < dash) {
+			return null;
+		}
+		try {
+			long start = Long.parseLong(spec.substring(0, dash).trim());
+			long end = Long.parseLong(spec.substring(dash + 1, slash).trim());
+			long length = Long.parseLong(spec.substring(slash + 1).trim());
+			if (start < 0 || end < start || end >= length) {
+				return null;
+			}
+			return new long[] { start, end, length };
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
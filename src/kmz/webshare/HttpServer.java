@@ -3,13 +3,10 @@ package kmz.webshare;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import org.tastefuljava.sceyefi.multipart.Multipart;
-import org.tastefuljava.sceyefi.multipart.Part;
-import org.tastefuljava.sceyefi.multipart.ValueParser;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -18,11 +15,14 @@ import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipOutputStream;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
 
 public abstract class HttpServer implements HttpHandler {
 
@@ -31,6 +31,7 @@ public abstract class HttpServer implements HttpHandler {
 		public final String method;
 		private final HttpExchange context;
 		private final Map<String, Object> extras;
+		private String route = null;
 
 		public Request(HttpExchange context) {
 			this.context = context;
@@ -74,6 +75,11 @@ public abstract class HttpServer implements HttpHandler {
 		public InetSocketAddress getRemoteAddress() {
 			return this.context.getRemoteAddress();
 		}
+
+		// name of the request kind used to group metrics, ex: file, listing, archive.
+		public void setRoute(String route) {
+			this.route = route;
+		}
 	}
 
 	protected class Response {
@@ -102,6 +108,14 @@ public abstract class HttpServer implements HttpHandler {
 			this.extras.put(key, value);
 		}
 
+		public void setRoute(String route) {
+			this.request.setRoute(route);
+		}
+
+		public String getMethod() {
+			return this.request.method;
+		}
+
 		public void setResponseCode(int responseCode) {
 			this.responseCode = responseCode;
 		}
@@ -122,6 +136,10 @@ public abstract class HttpServer implements HttpHandler {
 			return this.context.getResponseHeaders().getFirst(key);
 		}
 
+		public String getRequestHeader(String key) {
+			return this.request.getFirstHeader(key);
+		}
+
 		public void putHeader(String key, String... values) {
 			this.context.getResponseHeaders().put(key, Arrays.asList(values));
 		}
@@ -138,77 +156,204 @@ public abstract class HttpServer implements HttpHandler {
 			this.context.getResponseBody().write(response);
 		}
 
+		// send the validators of the resource, and a 304 response if the client has an up-to-date copy.
+		public boolean checkNotModified(String entityTag, long lastModified) throws IOException {
+			return HttpServer.this.checkNotModified(this.context, entityTag, lastModified, this.contentType);
+		}
+
 		public long write(String attachment, File file) throws IOException {
-			InputStream in = null;
 			if (this.contentType == null) {
 				this.contentType = HttpServer.this.getContentType(file);
 			}
-			try {
-				long start = 0, end = file.length();
-				if (attachment != null) {
-					context.getResponseHeaders().add(CONTENT_DISPOSITION, "attachment; filename=" + attachment);
+			if (attachment != null) {
+				context.getResponseHeaders().add(CONTENT_DISPOSITION, "attachment; filename=" + attachment);
+			}
+			return HttpServer.this.writeFile(this.context, this.responseCode, file, this.contentType);
+		}
+
+		/**
+		 * Write the files, and the content of the directories, as a zip archive.
+		 * Stored archives are laid out before sending: the length is known and ranges can be requested to resume a download.
+		 * Otherwise the archive is compressed, files of incompressible types are stored;
+		 * compressed archives are built once in the archive cache, and served from there with ranges when complete.
+		 */
+		public long writeZip(String attachment, boolean store, File... files) throws IOException {
+			if (attachment != null) {
+				this.context.getResponseHeaders().add(CONTENT_DISPOSITION, "attachment; filename=" + attachment);
+			}
+			ArchiveListing listing = ArchiveListing.create(files);
+			this.contentType = CONTENT_TYPE_ARCHIVE_ZIP;
+
+			if (store) {
+				ZipArchive archive = new ZipArchive(listing);
+				if (this.responseCode == HttpURLConnection.HTTP_OK) {
+					if (this.checkNotModified(archive.getEntityTag(), archive.getLastModified())) {
+						return 0;
+					}
 				}
-				String range = context.getRequestHeaders().getFirst(HttpServer.RANGE);
-				if (range != null && range.startsWith("bytes=")) {
-					int startPos = 6;
-					int endPos = range.indexOf('-', 6);
-					start = Long.parseLong(range.substring(startPos, endPos));
-
-					if (endPos > 0 && endPos + 1 < range.length()) {
-						end = Math.min(end, Long.parseLong(range.substring(endPos + 1)));
+				return HttpServer.this.writeContent(this.context, this.responseCode, archive, archive.getLength(), CONTENT_TYPE_ARCHIVE_ZIP, archive.getEntityTag(), archive.getLastModified());
+			}
+
+			return this.writeGenerated(listing, "zip", CONTENT_TYPE_ARCHIVE_ZIP, this.buildZip(listing));
+		}
+
+		// compresses the files as a zip archive, files of incompressible types are stored.
+		private ArchiveCache.Builder buildZip(final ArchiveListing listing) {
+			return new ArchiveCache.Builder() {
+				@Override
+				public long build(OutputStream out) throws IOException {
+					ZipWriter writer = new ZipWriter(out) {
+						@Override
+						protected boolean isStored(Path path) {
+							return HttpServer.this.isStored(HttpServer.this.getContentType(path.toFile()));
+						}
+					};
+					try {
+						writer.add(listing);
+						writer.finish();
+					}
+					finally {
+						writer.close();
 					}
-					String contentRange = String.format("bytes %d-%d/%d", start, end - 1, file.length());
-					context.getResponseHeaders().add(HttpServer.CONTENT_RANGE, contentRange);
-					this.setResponseCode(HttpURLConnection.HTTP_PARTIAL);
+					return writer.getLength();
+				}
+			};
+		}
 
-					WebShare.log("Range request: %s, response: %s", range, contentRange);
+		/**
+		 * Write the files, and the content of the directories, as a tar archive.
+		 * Plain archives are laid out before sending, like stored zip archives, the content of the files is sent directly;
+		 * archives compressed with gzip are built once in the archive cache.
+		 */
+		public long writeTar(String attachment, boolean compress, File... files) throws IOException {
+			if (attachment != null) {
+				this.context.getResponseHeaders().add(CONTENT_DISPOSITION, "attachment; filename=" + attachment);
+			}
+			ArchiveListing listing = ArchiveListing.create(files);
+			TarArchive archive = new TarArchive(listing);
+
+			if (!compress) {
+				this.contentType = CONTENT_TYPE_ARCHIVE_TAR;
+				if (this.responseCode == HttpURLConnection.HTTP_OK) {
+					if (this.checkNotModified(archive.getEntityTag(), archive.getLastModified())) {
+						return 0;
+					}
 				}
-				this.context.getResponseHeaders().add(CONTENT_TYPE, this.contentType);
-				this.sendResponseHeaders(end - start);
-
-				OutputStream out = this.context.getResponseBody();
-				in = new FileInputStream(file);
-				byte[] buff = new byte[1024];
-				start = in.skip(start);
-				while (start < end) {
-					int n = in.read(buff);
-					out.write(buff, 0, n);
-					start += n;
+				return HttpServer.this.writeContent(this.context, this.responseCode, archive, archive.getLength(), CONTENT_TYPE_ARCHIVE_TAR, archive.getEntityTag(), archive.getLastModified());
+			}
+
+			this.contentType = CONTENT_TYPE_ARCHIVE_GZIP;
+			return this.writeGenerated(listing, "tar.gz", CONTENT_TYPE_ARCHIVE_GZIP, this.buildTarGz(archive));
+		}
+
+		// compresses the tar archive with gzip, in parallel blocks.
+		private ArchiveCache.Builder buildTarGz(final TarArchive archive) {
+			return new ArchiveCache.Builder() {
+				@Override
+				public long build(OutputStream out) throws IOException {
+					ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out);
+					try {
+						archive.transfer(0, archive.getLength(), gzip);
+						gzip.finish();
+					}
+					finally {
+						gzip.close();
+					}
+					return gzip.getLength();
 				}
-				return end - start;
+			};
+		}
+
+		/**
+		 * Start building the compressed zip, or tar.gz, archive of the files in the archive cache, without sending it.
+		 * The archive is then downloaded from the cache, with ranges.
+		 * @return the job building the archive, null if the archive is too large to be cached.
+		 */
+		public JobScheduler.Job prebuild(boolean tar, File... files) throws IOException {
+			ArchiveListing listing = ArchiveListing.create(files);
+			ArchiveCache cache = HttpServer.this.archiveCache;
+			if (cache == null || !cache.accepts(listing.getSize())) {
+				return null;
 			}
-			finally {
-				Utils.close(in);
+			ArchiveCache.Archive archive;
+			if (tar) {
+				archive = cache.acquire(listing.getFingerprint() + ".tar.gz", listing.getSize(), this.buildTarGz(new TarArchive(listing)));
+			}
+			else {
+				archive = cache.acquire(listing.getFingerprint() + ".zip", listing.getSize(), this.buildZip(listing));
+			}
+			if (archive == null) {
+				throw new IOException("The archive cache is full, or too many archives are queued");
+			}
+			archive.close();
+			return archive.getJob();
+		}
+
+		/**
+		 * Send an archive of unknown length, built once in the archive cache if it is not too large.
+		 * A complete archive is sent like a file, an archive still being built is sent as it is written.
+		 */
+		private long writeGenerated(ArchiveListing listing, String extension, String contentType, ArchiveCache.Builder builder) throws IOException {
+			// the same files are compressed to the same bytes.
+			String entityTag = "\"" + listing.getFingerprint() + "-" + extension + "\"";
+			if (this.responseCode == HttpURLConnection.HTTP_OK) {
+				if (this.checkNotModified(entityTag, listing.getLastModified())) {
+					return 0;
+				}
 			}
-		}
 
-		public long writeZip(String attachment, File... files) throws IOException {
-			if (attachment != null) {
-				this.context.getResponseHeaders().add(CONTENT_DISPOSITION, "attachment; filename=" + attachment);
+			ArchiveCache cache = HttpServer.this.archiveCache;
+			ArchiveCache.Archive archive = null;
+			if (cache != null && cache.accepts(listing.getSize())) {
+				archive = cache.acquire(listing.getFingerprint() + "." + extension, listing.getSize(), builder);
+			}
+			if (archive == null) {
+				// not cached, the cache is full, or no job can build it: compress while sending.
+				this.context.getResponseHeaders().add(CONTENT_TYPE, contentType);
+				this.sendResponseHeaders(0);
+				return builder.build(this.context.getResponseBody());
 			}
-			this.context.getResponseHeaders().add(CONTENT_TYPE, CONTENT_TYPE_ARCHIVE_ZIP);
-			this.sendResponseHeaders(0);
 
-			ZipOutputStream out = null;
 			try {
-				out = new ZipOutputStream(this.context.getResponseBody());
-				for (File toZip : files) {
-					Utils.addToArchive(out, "", toZip);
+				if (archive.isComplete()) {
+					return HttpServer.this.writeContent(this.context, this.responseCode, archive, archive.getLength(), contentType, entityTag, listing.getLastModified());
 				}
+				// still being built, send the content as it is written.
+				this.context.getResponseHeaders().add(CONTENT_TYPE, contentType);
+				this.sendResponseHeaders(0);
+				return archive.tail(this.context.getResponseBody());
 			}
 			finally {
-				Utils.close(out);
+				archive.close();
 			}
-			return 0;
 		}
 
-		public long write(HtmlTemplate template) throws IOException {
-			this.context.getResponseHeaders().add(CONTENT_TYPE, CONTENT_TYPE_TEXT_HTML_CHARSET);
+		// send the headers and start rendering the template, the response is complete when the renderer is closed.
+		public HtmlTemplate.Renderer write(HtmlTemplate template) throws IOException {
+			return template.render(this.openWriter(CONTENT_TYPE_TEXT_HTML_CHARSET));
+		}
+
+		// send the headers and start a json document, the response is complete when the writer is closed.
+		public JsonWriter writeJson() throws IOException {
+			return new JsonWriter(this.openWriter(CONTENT_TYPE_JSON_CHARSET));
+		}
+
+		// send the headers, and open a writer encoding text as it is written, compressed if the client accepts it.
+		private Writer openWriter(String contentType) throws IOException {
+			this.context.getResponseHeaders().add(CONTENT_TYPE, contentType);
+			this.context.getResponseHeaders().add(VARY, ACCEPT_ENCODING);
+			boolean compress = CompressedCache.acceptsGzip(this.request.getFirstHeader(ACCEPT_ENCODING));
+			if (compress) {
+				this.context.getResponseHeaders().add(CONTENT_ENCODING, CompressedCache.GZIP);
+			}
 			this.sendResponseHeaders(0);
-			Writer out = new OutputStreamWriter(this.context.getResponseBody());
-			template.append(out);
-			out.flush();
-			return 0;
+
+			OutputStream body = this.context.getResponseBody();
+			if (compress) {
+				body = new GZIPOutputStream(body, 64 << 10);
+			}
+			// the writer buffers only a few kilobytes, content is sent as it is produced.
+			return new BufferedWriter(new OutputStreamWriter(body, DEFAULT_ENCODING));
 		}
 	}
 
@@ -227,6 +372,10 @@ public abstract class HttpServer implements HttpHandler {
 		public Error(String message) {
 			this(HttpURLConnection.HTTP_INTERNAL_ERROR, message, null);
 		}
+
+		public int getResponseCode() {
+			return this.responseCode;
+		}
 	}
 
 	protected abstract File getLocalPath(String path);
@@ -235,6 +384,15 @@ public abstract class HttpServer implements HttpHandler {
 
 	protected abstract String remapHeader(String key, String value);
 
+	// Cache-Control header value for the given content type, null to not send the header.
+	protected abstract String getCacheControl(String contentType);
+
+	// check if it is worth to compress the content of the given type.
+	protected abstract boolean isCompressible(String contentType);
+
+	// check if files of the given type are stored without compression in zip archives, ex: already compressed media.
+	protected abstract boolean isStored(String contentType);
+
 	// Enforce to be authenticated.
 	abstract boolean isAuthenticated(Request request);
 
@@ -244,14 +402,23 @@ public abstract class HttpServer implements HttpHandler {
 	// process the request get and post params.
 	abstract void processParam(Request request, String name, InputStream value, Map<String, String> params) throws Error;
 
+	// process the body of a PUT or PATCH request, after the query params.
+	abstract void processUpload(Request request, InputStream body) throws Error;
+
 	// handle write response to client.
 	abstract long writeResponse(Response response, Exception error) throws IOException;
 
 	public static final String RANGE = "Range";
+	public static final String IF_RANGE = "If-Range";
+	public static final String IF_NONE_MATCH = "If-None-Match";
+	public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
 	public static final String REFERER = "Referer";
 
 	public static final String METHOD_GET = "GET";
 	public static final String METHOD_POST = "POST";
+	public static final String METHOD_HEAD = "HEAD";
+	public static final String METHOD_PUT = "PUT";
+	public static final String METHOD_PATCH = "PATCH";
 	public static final String METHOD_CACHED = "FILE";
 	public static final String DEFAULT_ENCODING = "UTF-8";
 
@@ -259,13 +426,69 @@ public abstract class HttpServer implements HttpHandler {
 	protected static final String CONTENT_RANGE = "Content-range";
 	protected static final String CONTENT_LENGTH = "Content-length";
 	protected static final String CONTENT_DISPOSITION = "content-disposition";
+	protected static final String ACCEPT_RANGES = "Accept-Ranges";
+	protected static final String ETAG = "ETag";
+	protected static final String LAST_MODIFIED = "Last-Modified";
+	protected static final String CACHE_CONTROL = "Cache-Control";
+	protected static final String CONTENT_ENCODING = "Content-Encoding";
+	protected static final String ACCEPT_ENCODING = "Accept-Encoding";
+	protected static final String VARY = "Vary";
+	protected static final String ACCEPT = "Accept";
+	protected static final String DIGEST = "Digest";
 
 	protected static final String CONTENT_TYPE_ARCHIVE_ZIP = "application/zip";
+	protected static final String CONTENT_TYPE_ARCHIVE_TAR = "application/x-tar";
+	protected static final String CONTENT_TYPE_ARCHIVE_GZIP = "application/gzip";
+	protected static final String CONTENT_TYPE_MULTIPART_RANGES = "multipart/byteranges; boundary=";
 	//protected static final String CONTENT_TYPE_OCTET_STREAM = "application/octet-stream";
 	protected static final String CONTENT_TYPE_URL_ENCODED_FORM = "application/x-www-form-urlencoded";
 
 	protected static final String CONTENT_TYPE_TEXT_HTML_CHARSET = "text/html; charset=" + DEFAULT_ENCODING;
+	protected static final String CONTENT_TYPE_JSON = "application/json";
+	protected static final String CONTENT_TYPE_JSON_CHARSET = CONTENT_TYPE_JSON + "; charset=" + DEFAULT_ENCODING;
 	protected static final String CONTENT_TYPE_TEXT_PLAIN_CHARSET = "text/plain; charset=" + DEFAULT_ENCODING;
+	protected static final String CONTENT_TYPE_METRICS = "text/plain; version=0.0.4; charset=" + DEFAULT_ENCODING;
+
+	protected static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	protected static final String ROUTE_METRICS = "metrics";
+	// requests with an unknown method, the method is not used as a label: any string can be sent.
+	protected static final String ROUTE_OTHER = "other";
+
+	// compressed content of small text files.
+	protected final CompressedCache compressedCache = new CompressedCache(64 << 20, 8 << 20);
+
+	protected final Metrics metrics = new Metrics();
+
+	// hashes of the uploaded files, sent as entity tags and digests of their content.
+	protected final ContentIndex contentIndex = new ContentIndex();
+
+	// generated archives shared by the downloads of the same files, null to disable.
+	private ArchiveCache archiveCache = null;
+
+	public void setArchiveCache(ArchiveCache archiveCache) {
+		this.archiveCache = archiveCache;
+	}
+
+	// requests to this path are answered with the metrics, null to disable.
+	private String metricsPath = null;
+
+	public void setMetricsPath(String metricsPath) {
+		this.metricsPath = metricsPath;
+	}
+
+	// check if the request is for the metrics, and send them.
+	protected boolean writeMetrics(HttpExchange context) throws IOException {
+		if (this.metricsPath == null || !this.metricsPath.equals(context.getRequestURI().getPath())) {
+			return false;
+		}
+		byte[] response = this.metrics.format().getBytes(DEFAULT_ENCODING);
+		context.getResponseHeaders().set(CONTENT_TYPE, CONTENT_TYPE_METRICS);
+		context.getResponseHeaders().set(CACHE_CONTROL, "no-store");
+		context.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.length);
+		context.getResponseBody().write(response);
+		return true;
+	}
 
 	private static final InputStream emptyInputStream = new InputStream() {
 		@Override
@@ -291,14 +514,243 @@ public abstract class HttpServer implements HttpHandler {
 		}
 	}
 
+	// strong entity tag of a file, generated from its metadata.
+	protected static String getEntityTag(File file) {
+		return String.format("\"%x-%x\"", file.length(), file.lastModified());
+	}
+
+	// strong entity tag of a file, its hash if the content is indexed.
+	private String getContentEntityTag(File file) {
+		String hash = this.contentIndex.getHash(file);
+		return hash != null ? "\"sha256-" + hash + "\"" : getEntityTag(file);
+	}
+
+	// weak entity tag of a generated resource, ex: the listing of a directory.
+	protected static String getWeakEntityTag(File file) {
+		return String.format("W/\"%x\"", file.lastModified());
+	}
+
+	/**
+	 * Send the validators and the caching policy of the resource.
+	 * Conditional GET and HEAD requests are answered with 304 if the client copy is up-to-date.
+	 * @return true if the response was sent.
+	 */
+	protected boolean checkNotModified(HttpExchange context, String entityTag, long lastModified, String contentType) throws IOException {
+		Headers headers = context.getResponseHeaders();
+		headers.set(ETAG, entityTag);
+		headers.set(LAST_MODIFIED, Utils.formatHttpDate(lastModified));
+		String cacheControl = contentType == null ? null : this.getCacheControl(contentType);
+		if (cacheControl != null) {
+			headers.set(CACHE_CONTROL, cacheControl);
+		}
+
+		String method = context.getRequestMethod();
+		if (!METHOD_GET.equals(method) && !METHOD_HEAD.equals(method)) {
+			return false;
+		}
+
+		boolean notModified = false;
+		String ifNoneMatch = context.getRequestHeaders().getFirst(IF_NONE_MATCH);
+		if (ifNoneMatch != null) {
+			// weak comparison: W/"x" matches "x"
+			String opaqueTag = entityTag.startsWith("W/") ? entityTag.substring(2) : entityTag;
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(opaqueTag)) {
+					notModified = true;
+					break;
+				}
+			}
+		}
+		else {
+			String ifModifiedSince = context.getRequestHeaders().getFirst(IF_MODIFIED_SINCE);
+			if (ifModifiedSince != null) {
+				long date = Utils.parseHttpDate(ifModifiedSince);
+				notModified = date >= 0 && lastModified / 1000 <= date / 1000;
+			}
+		}
+
+		if (notModified) {
+			context.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+		}
+		return notModified;
+	}
+
+	/**
+	 * Write the gzip compressed content of the file to the client.
+	 * A precompressed `.gz` sidecar is used if it is not older than the file,
+	 * small files are compressed in memory and cached, large files are compressed while sending.
+	 */
+	private long writeCompressed(HttpExchange context, File file, String contentType) throws IOException {
+		Headers headers = context.getResponseHeaders();
+		File sidecar = new File(file.getPath() + ".gz");
+		if (sidecar.isFile() && sidecar.lastModified() >= file.lastModified()) {
+			String entityTag = getEntityTag(sidecar);
+			if (this.checkNotModified(context, entityTag, file.lastModified(), contentType)) {
+				return 0;
+			}
+			headers.add(CONTENT_TYPE, contentType);
+			headers.add(CONTENT_ENCODING, CompressedCache.GZIP);
+			context.sendResponseHeaders(HttpURLConnection.HTTP_OK, sidecar.length());
+			return Utils.transferFile(sidecar, 0, sidecar.length(), context.getResponseBody());
+		}
+
+		// the compressed variant must have a different entity tag.
+		String entityTag = this.getContentEntityTag(file);
+		entityTag = entityTag.substring(0, entityTag.length() - 1) + "-gz\"";
+		if (this.checkNotModified(context, entityTag, file.lastModified(), contentType)) {
+			return 0;
+		}
+		headers.add(CONTENT_TYPE, contentType);
+		headers.add(CONTENT_ENCODING, CompressedCache.GZIP);
+
+		if (this.compressedCache.isCacheable(file)) {
+			byte[] content = this.compressedCache.get(file);
+			context.sendResponseHeaders(HttpURLConnection.HTTP_OK, content.length);
+			context.getResponseBody().write(content);
+			return content.length;
+		}
+
+		context.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0);
+		Utils.CountingOutputStream body = new Utils.CountingOutputStream(context.getResponseBody());
+		GZIPOutputStream out = new GZIPOutputStream(body, 64 << 10);
+		Utils.transferFile(file, 0, file.length(), out);
+		out.finish();
+		return body.getCount();
+	}
+
+	/**
+	 * Write the content of the file to the client.
+	 * Validators are sent with every successful response, conditional requests are answered with 304.
+	 * @return the number of bytes of the response body.
+	 */
+	protected long writeFile(HttpExchange context, int responseCode, final File file, String contentType) throws IOException {
+		Headers headers = context.getResponseHeaders();
+		long length = file.length();
+		long lastModified = file.lastModified();
+		String entityTag = this.getContentEntityTag(file);
+
+		if (responseCode == HttpURLConnection.HTTP_OK && this.isCompressible(contentType)) {
+			headers.set(VARY, ACCEPT_ENCODING);
+			// compressed responses do not support ranges
+			if (context.getRequestHeaders().getFirst(RANGE) == null) {
+				if (CompressedCache.acceptsGzip(context.getRequestHeaders().getFirst(ACCEPT_ENCODING))) {
+					return this.writeCompressed(context, file, contentType);
+				}
+			}
+		}
+
+		if (responseCode == HttpURLConnection.HTTP_OK) {
+			if (this.checkNotModified(context, entityTag, lastModified, contentType)) {
+				return 0;
+			}
+			String hash = this.contentIndex.getHash(file);
+			if (hash != null) {
+				headers.set(DIGEST, ContentIndex.toDigestHeader(hash));
+			}
+		}
+		Content content = new Content() {
+			@Override
+			public void transfer(long position, long count, OutputStream out) throws IOException {
+				Utils.transferFile(file, position, count, out);
+			}
+		};
+		return this.writeContent(context, responseCode, content, length, contentType, entityTag, lastModified);
+	}
+
+	// content of a response, which can be sent in parts.
+	protected interface Content {
+
+		// write `count` bytes of the content starting at `position`.
+		void transfer(long position, long count, OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Write the content, or the requested ranges of it, to the client.
+	 * Range requests are served only for successful GET requests,
+	 * multiple ranges are streamed as `multipart/byteranges`.
+	 * @return the number of bytes of the response body.
+	 */
+	protected long writeContent(HttpExchange context, int responseCode, Content content, long length, String contentType, String entityTag, long lastModified) throws IOException {
+		Headers headers = context.getResponseHeaders();
+		headers.set(ACCEPT_RANGES, "bytes");
+
+		List<HttpRange> ranges = null;
+		String range = context.getRequestHeaders().getFirst(RANGE);
+		if (range != null && responseCode == HttpURLConnection.HTTP_OK && METHOD_GET.equals(context.getRequestMethod())) {
+			if (HttpRange.checkIfRange(context.getRequestHeaders().getFirst(IF_RANGE), entityTag, lastModified)) {
+				ranges = HttpRange.parse(range, length);
+			}
+		}
+
+		if (ranges == null) {
+			headers.add(CONTENT_TYPE, contentType);
+			context.sendResponseHeaders(responseCode, length > 0 ? length : -1);
+			if (length > 0) {
+				content.transfer(0, length, context.getResponseBody());
+				return length;
+			}
+			return 0;
+		}
+
+		if (ranges.isEmpty()) {
+			WebShare.log("Range request: %s, not satisfiable: %d", range, length);
+			headers.add(CONTENT_RANGE, HttpRange.toUnsatisfiedRange(length));
+			context.sendResponseHeaders(HTTP_RANGE_NOT_SATISFIABLE, -1);
+			return 0;
+		}
+
+		if (ranges.size() == 1) {
+			HttpRange single = ranges.get(0);
+			WebShare.log("Range request: %s, response: %s", range, single.toContentRange(length));
+			headers.add(CONTENT_RANGE, single.toContentRange(length));
+			headers.add(CONTENT_TYPE, contentType);
+			context.sendResponseHeaders(HttpURLConnection.HTTP_PARTIAL, single.length());
+			content.transfer(single.start, single.length(), context.getResponseBody());
+			return single.length();
+		}
+
+		// the length of the multipart body is known before sending anything.
+		String boundary = UUID.randomUUID().toString().replace("-", "");
+		byte[][] partHeaders = new byte[ranges.size()][];
+		byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(DEFAULT_ENCODING);
+		long responseLength = closing.length;
+		for (int i = 0; i < partHeaders.length; i += 1) {
+			HttpRange part = ranges.get(i);
+			String partHeader = "\r\n--" + boundary + "\r\n"
+					+ CONTENT_TYPE + ": " + contentType + "\r\n"
+					+ CONTENT_RANGE + ": " + part.toContentRange(length) + "\r\n\r\n";
+			partHeaders[i] = partHeader.getBytes(DEFAULT_ENCODING);
+			responseLength += partHeaders[i].length + part.length();
+		}
+
+		WebShare.log("Range request: %s, response: %d ranges", range, ranges.size());
+		headers.add(CONTENT_TYPE, CONTENT_TYPE_MULTIPART_RANGES + boundary);
+		context.sendResponseHeaders(HttpURLConnection.HTTP_PARTIAL, responseLength);
+
+		OutputStream out = context.getResponseBody();
+		for (int i = 0; i < partHeaders.length; i += 1) {
+			HttpRange part = ranges.get(i);
+			out.write(partHeaders[i]);
+			content.transfer(part.start, part.length(), out);
+		}
+		out.write(closing);
+		return responseLength;
+	}
+
 	@Override
 	public void handle(final HttpExchange context) {
 		Exception error = null;
 		long requestStart = System.currentTimeMillis();
+		long requestNanos = System.nanoTime();
 		long responseStart = requestStart;
 		long responseLength = -1;
 		final Request request = new Request(context);
 		final Response response = new Response(request);
+		this.metrics.activeRequests.incrementAndGet();
 
 		try {
 			if (!this.isAuthenticated(request)) {
@@ -308,6 +760,11 @@ public abstract class HttpServer implements HttpHandler {
 				return;
 			}
 
+			if (this.writeMetrics(context)) {
+				request.setRoute(ROUTE_METRICS);
+				return;
+			}
+
 			try {
 				// begin request.
 				if (!this.beginRequest(request)) {
@@ -324,30 +781,29 @@ public abstract class HttpServer implements HttpHandler {
 					InputStream input = context.getRequestBody();
 
 					if (contentType != null && contentType.startsWith("multipart")) {
-						Map<String, String> params = ValueParser.parse(contentType);
+						Map<String, String> params = MultipartParser.parseParameters(contentType);
 
 						String encoding = params.get("charset");
 						if (encoding == null) {
 							encoding = DEFAULT_ENCODING;
 						}
+						String boundary = params.get("boundary");
+						if (boundary == null) {
+							throw new HttpServer.Error(HttpURLConnection.HTTP_BAD_REQUEST, "Missing multipart boundary", null);
+						}
 
-						byte[] boundary = params.get("boundary").getBytes(encoding);
-						Multipart mp = new Multipart(input, encoding, boundary);
-						Part p = mp.nextPart();
-
-						while (p != null) {
-							InputStream body = p.getBody();
-							try {
-								String partType = p.getFirstValue(CONTENT_DISPOSITION);
-								Map<String, String> param = ValueParser.parse(partType);
+						MultipartParser parser = new MultipartParser(input, boundary.getBytes(encoding), Charset.forName(encoding));
+						try {
+							MultipartParser.Part part;
+							while ((part = parser.nextPart()) != null) {
+								Map<String, String> param = MultipartParser.parseParameters(part.getHeader(CONTENT_DISPOSITION));
 								String key = param.get("name");
 								// process multipart params.
-								HttpServer.this.processParam(request, key, body, param);
+								HttpServer.this.processParam(request, key, part.getBody(), param);
 							}
-							finally {
-								Utils.close(body);
-							}
-							p = mp.nextPart();
+						}
+						finally {
+							parser.close();
 						}
 					}
 					else if (CONTENT_TYPE_URL_ENCODED_FORM.equals(contentType)) {
@@ -358,6 +814,9 @@ public abstract class HttpServer implements HttpHandler {
 						throw new Exception("content type not known: " + contentType);
 					}
 				}
+				else if (METHOD_PUT.equals(context.getRequestMethod()) || METHOD_PATCH.equals(context.getRequestMethod())) {
+					this.processUpload(request, context.getRequestBody());
+				}
 			}
 			catch (Exception e) {
 				error = e;
@@ -372,16 +831,36 @@ public abstract class HttpServer implements HttpHandler {
 		}
 		finally {
 			context.close();
-			long now = System.currentTimeMillis();
-			String responseTime = Utils.formatTime(now - requestStart);
-			if (responseLength > 0) {
-				String responseSize = Utils.formatSize(responseLength);
-				String responseSpeed = Utils.formatSpeed(responseLength, now - responseStart);
-				WebShare.log(error, "response: %s in %s at %s: `%s`", responseSize, responseTime, responseSpeed, request.path);
-			}
-			else {
-				WebShare.log(error, "response: in %s: `%s`", responseTime, request.path);
+			this.metrics.activeRequests.decrementAndGet();
+			String route = request.route != null ? request.route : getMethodRoute(request.method);
+			this.metrics.record(route, context.getResponseCode(), (System.nanoTime() - requestNanos) / 1000, responseLength);
+			// scrapes of the metrics are not logged.
+			if (!ROUTE_METRICS.equals(route)) {
+				long now = System.currentTimeMillis();
+				String responseTime = Utils.formatTime(now - requestStart);
+				if (responseLength > 0) {
+					String responseSize = Utils.formatSize(responseLength);
+					String responseSpeed = Utils.formatSpeed(responseLength, now - responseStart);
+					WebShare.log(error, "response: %s in %s at %s: `%s`", responseSize, responseTime, responseSpeed, request.path);
+				}
+				else {
+					WebShare.log(error, "response: in %s: `%s`", responseTime, request.path);
+				}
 			}
 		}
 	}
+
+	// route of a request not routed by the handler: the method, if known.
+	private static String getMethodRoute(String method) {
+		switch (method) {
+			case METHOD_GET:
+			case METHOD_POST:
+			case METHOD_HEAD:
+			case METHOD_PUT:
+			case METHOD_PATCH:
+				return method.toLowerCase();
+			default:
+				return ROUTE_OTHER;
+		}
+	}
 }
@@ -0,0 +1,358 @@
+package kmz.webshare;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background executor of the long file operations: recursive deletes, bulk directory creation, archive builds.
+ * Requests submit a job and return without waiting for it, the progress of the job is queried by its id.
+ * A few jobs run at a time, the others wait in a bounded queue; finished jobs are kept for an hour,
+ * the oldest ones are forgotten earlier when too many are kept.
+ */
+public class JobScheduler {
+
+	private static final long EXPIRY_MILLIS = TimeUnit.HOURS.toMillis(1);
+	private static final int MAX_QUEUED = 256;
+	// jobs kept for their status, more than the jobs which can be running or queued.
+	private static final int MAX_JOBS = 4096;
+
+	// the work of a job, progress and errors are reported to the job.
+	public interface Task {
+
+		void run(Job job) throws IOException;
+	}
+
+	private final ThreadPoolExecutor executor;
+	// walks the directory trees of deletes in parallel.
+	private final ForkJoinPool walkers = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+	private final AtomicLong sequence = new AtomicLong();
+	// jobs by id, oldest first.
+	private final Map<String, Job> jobs = new LinkedHashMap<>();
+
+	/**
+	 * @param threads number of jobs running at the same time.
+	 */
+	public JobScheduler(int threads) {
+		this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "job");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	// change the number of jobs running at the same time.
+	public void setThreads(int threads) {
+		if (threads > this.executor.getMaximumPoolSize()) {
+			this.executor.setMaximumPoolSize(threads);
+			this.executor.setCorePoolSize(threads);
+		}
+		else {
+			this.executor.setCorePoolSize(threads);
+			this.executor.setMaximumPoolSize(threads);
+		}
+	}
+
+	/**
+	 * Queue the task, it runs when a thread is available.
+	 * @param type kind of the job, ex: `delete`.
+	 * @param target what the job works on, ex: a path.
+	 */
+	public Job submit(String type, String target, Task task) throws IOException {
+		return this.submit(this.create(type, target), task);
+	}
+
+	// a new job, listed as queued until its task is submitted.
+	public Job create(String type, String target) {
+		Job job = new Job(Long.toString(this.sequence.incrementAndGet()), type, target);
+		synchronized (this) {
+			this.expire();
+			this.jobs.put(job.id, job);
+		}
+		return job;
+	}
+
+	// queue the task of a created job.
+	public Job submit(Job job, Task task) throws IOException {
+		return this.submit(job, task, this.executor);
+	}
+
+	// queue the task of a created job on another executor, the job is still listed and reports its progress.
+	public Job submit(final Job job, final Task task, Executor executor) throws IOException {
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					job.start();
+					try {
+						task.run(job);
+					}
+					catch (IOException | RuntimeException e) {
+						WebShare.log(e, "job: %s failed: `%s`", job.type, job.target);
+						job.addError(e.getMessage() != null ? e.getMessage() : e.toString());
+					}
+					finally {
+						job.finish();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			job.fail("Too many jobs queued");
+			throw new IOException("Too many jobs queued", e);
+		}
+		return job;
+	}
+
+	// the job, null if unknown or expired.
+	public synchronized Job get(String id) {
+		return this.jobs.get(id);
+	}
+
+	// the jobs not yet expired, oldest first.
+	public synchronized List<Job> list() {
+		return new ArrayList<>(this.jobs.values());
+	}
+
+	/**
+	 * Delete the file, or the directory and its content, from a job.
+	 * Directories are walked in parallel, each one deleted after its content; a failed entry is reported to the job,
+	 * and keeps its parent directories, the rest is deleted.
+	 * @return true if everything was deleted.
+	 */
+	public boolean deleteTree(Path path, Job job) {
+		return this.walkers.invoke(new DeleteTask(path, job));
+	}
+
+	// forget the jobs finished an hour ago, and the oldest finished jobs if there are too many.
+	private void expire() {
+		long now = System.currentTimeMillis();
+		Iterator<Job> iterator = this.jobs.values().iterator();
+		while (iterator.hasNext()) {
+			Job job = iterator.next();
+			long finished = job.getFinished();
+			if (finished > 0 && (now - finished > EXPIRY_MILLIS || this.jobs.size() >= MAX_JOBS)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	// deletes a directory after its content, the subdirectories in parallel.
+	private static class DeleteTask extends RecursiveTask<Boolean> {
+		private static final long serialVersionUID = 1L;
+
+		// tasks are never serialized.
+		private final transient Path path;
+		private final transient Job job;
+
+		DeleteTask(Path path, Job job) {
+			this.path = path;
+			this.job = job;
+		}
+
+		@Override
+		protected Boolean compute() {
+			if (!Files.isDirectory(this.path, LinkOption.NOFOLLOW_LINKS)) {
+				return this.delete(this.path);
+			}
+			boolean deleted = true;
+			List<DeleteTask> directories = new ArrayList<>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(this.path)) {
+				for (Path entry : entries) {
+					if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+						DeleteTask task = new DeleteTask(entry, this.job);
+						task.fork();
+						directories.add(task);
+					}
+					else {
+						deleted &= this.delete(entry);
+					}
+				}
+			}
+			catch (IOException e) {
+				this.job.addError(e.toString());
+				deleted = false;
+			}
+			for (DeleteTask task : directories) {
+				deleted &= task.join();
+			}
+			// a directory with a failed entry can not be deleted, the entry is already reported.
+			return deleted && this.delete(this.path);
+		}
+
+		private boolean delete(Path path) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				Files.delete(path);
+				this.job.progress(1, attributes.isRegularFile() ? attributes.size() : 0);
+				return true;
+			}
+			catch (IOException e) {
+				this.job.addError(e.toString());
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * A job: queued, running, or finished with or without errors.
+	 */
+	public static class Job {
+		public final String id;
+		public final String type;
+		public final String target;
+		private final AtomicLong done = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private volatile long total = -1;
+		private long started = 0;
+		private long finished = 0;
+		private int errors = 0;
+		private String error = null;
+
+		Job(String id, String type, String target) {
+			this.id = id;
+			this.type = type;
+			this.target = target;
+		}
+
+		// number of items to process, if known upfront.
+		public void setTotal(long total) {
+			this.total = total;
+		}
+
+		public void progress(long count, long bytes) {
+			this.done.addAndGet(count);
+			this.bytes.addAndGet(bytes);
+		}
+
+		// record a failure, the job goes on with the other items; the first error is kept.
+		public synchronized void addError(String message) {
+			this.errors += 1;
+			if (this.error == null) {
+				this.error = message;
+			}
+		}
+
+		public synchronized String getState() {
+			if (this.finished > 0) {
+				return this.errors > 0 ? "failed" : "done";
+			}
+			return this.started > 0 ? "running" : "queued";
+		}
+
+		// the state and progress of the job at one point in time.
+		public synchronized Status getStatus() {
+			return new Status(this);
+		}
+
+		public long getDone() {
+			return this.done.get();
+		}
+
+		public long getBytes() {
+			return this.bytes.get();
+		}
+
+		// number of items to process, -1 if unknown.
+		public long getTotal() {
+			return this.total;
+		}
+
+		public synchronized int getErrors() {
+			return this.errors;
+		}
+
+		// the first error, null if none.
+		public synchronized String getError() {
+			return this.error;
+		}
+
+		public synchronized long getStarted() {
+			return this.started;
+		}
+
+		// time the job finished, 0 while it is queued or running.
+		public synchronized long getFinished() {
+			return this.finished;
+		}
+
+		/**
+		 * Wait for the job to finish, at most the given time.
+		 * @return true if the job is finished.
+		 */
+		public synchronized boolean await(long millis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + millis;
+			long remaining = millis;
+			while (this.finished == 0 && remaining > 0) {
+				this.wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			return this.finished > 0;
+		}
+
+		// finish a job which could not run.
+		synchronized void fail(String message) {
+			this.addError(message);
+			this.finish();
+		}
+
+		private synchronized void start() {
+			this.started = System.currentTimeMillis();
+		}
+
+		private synchronized void finish() {
+			this.finished = System.currentTimeMillis();
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Snapshot of the status of a job, consistent with itself while the job goes on.
+	 */
+	public static class Status {
+		public final String state;
+		public final long done;
+		public final long bytes;
+		// number of items to process, -1 if unknown.
+		public final long total;
+		public final int errors;
+		// the first error, null if none.
+		public final String error;
+		public final long started;
+		// time the job finished, 0 while it is queued or running.
+		public final long finished;
+
+		// called with the job locked.
+		private Status(Job job) {
+			this.state = job.getState();
+			this.done = job.getDone();
+			this.bytes = job.getBytes();
+			this.total = job.getTotal();
+			this.errors = job.errors;
+			this.error = job.error;
+			this.started = job.started;
+			this.finished = job.finished;
+		}
+	}
+}
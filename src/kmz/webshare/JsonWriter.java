@@ -0,0 +1,142 @@
+package kmz.webshare;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streaming JSON encoder, values are written to the output as they are added.
+ * Nesting is not validated, the caller is responsible for matching begin and end calls.
+ */
+public class JsonWriter implements Closeable {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Writer out;
+	// no value was written yet in the current object or array.
+	private boolean first = true;
+	// a name was written, the next value belongs to it.
+	private boolean named = false;
+
+	public JsonWriter(Writer out) {
+		this.out = out;
+	}
+
+	public JsonWriter beginObject() throws IOException {
+		this.separate();
+		this.out.write('{');
+		this.first = true;
+		return this;
+	}
+
+	public JsonWriter endObject() throws IOException {
+		this.out.write('}');
+		this.first = false;
+		return this;
+	}
+
+	public JsonWriter beginArray() throws IOException {
+		this.separate();
+		this.out.write('[');
+		this.first = true;
+		return this;
+	}
+
+	public JsonWriter endArray() throws IOException {
+		this.out.write(']');
+		this.first = false;
+		return this;
+	}
+
+	// write the name of the next value in an object.
+	public JsonWriter name(String name) throws IOException {
+		this.separate();
+		this.string(name);
+		this.out.write(':');
+		this.named = true;
+		return this;
+	}
+
+	public JsonWriter value(String value) throws IOException {
+		this.separate();
+		if (value == null) {
+			this.out.write("null");
+		}
+		else {
+			this.string(value);
+		}
+		this.first = false;
+		return this;
+	}
+
+	public JsonWriter value(long value) throws IOException {
+		this.separate();
+		this.out.write(Long.toString(value));
+		this.first = false;
+		return this;
+	}
+
+	public JsonWriter value(boolean value) throws IOException {
+		this.separate();
+		this.out.write(value ? "true" : "false");
+		this.first = false;
+		return this;
+	}
+
+	public void flush() throws IOException {
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.out.close();
+	}
+
+	private void separate() throws IOException {
+		if (this.named) {
+			this.named = false;
+			return;
+		}
+		if (!this.first) {
+			this.out.write(',');
+		}
+	}
+
+	private void string(String value) throws IOException {
+		this.out.write('"');
+		int start = 0;
+		for (int i = 0; i < value.length(); i += 1) {
+			char chr = value.charAt(i);
+			if (chr >= 0x20 && chr != '"' && chr != '\\' && chr != '\u2028' && chr != '\u2029') {
+				continue;
+			}
+			this.out.write(value, start, i - start);
+			start = i + 1;
+			switch (chr) {
+				case '"':
+					this.out.write("\\\"");
+					break;
+				case '\\':
+					this.out.write("\\\\");
+					break;
+				case '\n':
+					this.out.write("\\n");
+					break;
+				case '\r':
+					this.out.write("\\r");
+					break;
+				case '\t':
+					this.out.write("\\t");
+					break;
+				default:
+					this.out.write("\\u");
+					this.out.write(HEX[chr >> 12 & 0xf]);
+					this.out.write(HEX[chr >> 8 & 0xf]);
+					this.out.write(HEX[chr >> 4 & 0xf]);
+					this.out.write(HEX[chr & 0xf]);
+			}
+		}
+		this.out.write(value, start, value.length() - start);
+		this.out.write('"');
+	}
+}
@@ -0,0 +1,196 @@
+package kmz.webshare;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server metrics, exported in the Prometheus text format.
+ * Recording is lock free: counters are `LongAdder`s, latencies are kept in log-linear histograms of atomic counters.
+ */
+public class Metrics {
+
+	// each power of two is split into this many buckets, the relative error of quantiles is below 1/16.
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = 41 * SUB_BUCKETS;
+
+	private static final double[] QUANTILES = {.5, .9, .99, .999};
+
+	/**
+	 * Latency histogram, values are recorded in microseconds.
+	 */
+	public static class Histogram {
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+
+		public void record(long micros) {
+			if (micros < 0) {
+				micros = 0;
+			}
+			this.counts.incrementAndGet(bucket(micros));
+			this.count.increment();
+			this.sum.add(micros);
+		}
+
+		// estimate the value at the given quantile, using the middle of the bucket.
+		public long quantile(double quantile) {
+			long[] counts = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i += 1) {
+				counts[i] = this.counts.get(i);
+				total += counts[i];
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(quantile * total);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i += 1) {
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0) {
+					return lowerBound(i) + (width(i) - 1) / 2;
+				}
+			}
+			return lowerBound(BUCKETS - 1);
+		}
+
+		private static int bucket(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exp = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return Math.min(BUCKETS - 1, (exp - SUB_BITS + 1) * SUB_BUCKETS + sub);
+		}
+
+		private static long lowerBound(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+			long sub = bucket % SUB_BUCKETS;
+			return (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+		}
+
+		private static long width(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return 1;
+			}
+			return 1L << (bucket / SUB_BUCKETS - 1);
+		}
+	}
+
+	// request latency by route and status code.
+	private final ConcurrentHashMap<String, Histogram> latency = new ConcurrentHashMap<>();
+	// response bytes by route.
+	private final ConcurrentHashMap<String, LongAdder> bytesServed = new ConcurrentHashMap<>();
+
+	public final AtomicLong activeRequests = new AtomicLong();
+	public final AtomicLong activeConnections = new AtomicLong();
+	public final LongAdder uploads = new LongAdder();
+	public final LongAdder uploadBytes = new LongAdder();
+	public final LongAdder proxyHits = new LongAdder();
+	public final LongAdder proxyMisses = new LongAdder();
+	public final LongAdder proxyErrors = new LongAdder();
+	public final LongAdder proxyBytes = new LongAdder();
+
+	private volatile Executor executor = null;
+	private volatile boolean trackConnections = false;
+
+	// report the queue depth of the executor, if it is a thread pool.
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	// the server engine reports open connections.
+	public void setTrackConnections(boolean trackConnections) {
+		this.trackConnections = trackConnections;
+	}
+
+	// record a finished request.
+	public void record(String route, int status, long micros, long bytes) {
+		String key = route + '\n' + status;
+		Histogram histogram = this.latency.get(key);
+		if (histogram == null) {
+			Histogram previous = this.latency.putIfAbsent(key, histogram = new Histogram());
+			if (previous != null) {
+				histogram = previous;
+			}
+		}
+		histogram.record(micros);
+
+		if (bytes > 0) {
+			LongAdder served = this.bytesServed.get(route);
+			if (served == null) {
+				LongAdder previous = this.bytesServed.putIfAbsent(route, served = new LongAdder());
+				if (previous != null) {
+					served = previous;
+				}
+			}
+			served.add(bytes);
+		}
+	}
+
+	// format all the metrics using the Prometheus text exposition format.
+	public String format() {
+		StringBuilder out = new StringBuilder();
+
+		out.append("# HELP webshare_request_duration_seconds Request latency by route and status.\n");
+		out.append("# TYPE webshare_request_duration_seconds summary\n");
+		for (Map.Entry<String, Histogram> entry : new TreeMap<>(this.latency).entrySet()) {
+			String[] key = entry.getKey().split("\n");
+			String labels = String.format(Locale.ROOT, "route=\"%s\",status=\"%s\"", key[0], key[1]);
+			Histogram histogram = entry.getValue();
+			for (double quantile : QUANTILES) {
+				out.append(String.format(Locale.ROOT, "webshare_request_duration_seconds{%s,quantile=\"%s\"} %.6f\n", labels, quantile, histogram.quantile(quantile) / 1e6));
+			}
+			out.append(String.format(Locale.ROOT, "webshare_request_duration_seconds_sum{%s} %.6f\n", labels, histogram.sum.sum() / 1e6));
+			out.append(String.format(Locale.ROOT, "webshare_request_duration_seconds_count{%s} %d\n", labels, histogram.count.sum()));
+		}
+
+		out.append("# HELP webshare_response_bytes_total Bytes of response bodies by route.\n");
+		out.append("# TYPE webshare_response_bytes_total counter\n");
+		for (Map.Entry<String, LongAdder> entry : new TreeMap<>(this.bytesServed).entrySet()) {
+			out.append(String.format(Locale.ROOT, "webshare_response_bytes_total{route=\"%s\"} %d\n", entry.getKey(), entry.getValue().sum()));
+		}
+
+		gauge(out, "webshare_active_requests", "Requests being processed.", this.activeRequests.get());
+		if (this.trackConnections) {
+			gauge(out, "webshare_active_connections", "Open client connections.", this.activeConnections.get());
+		}
+		Executor executor = this.executor;
+		if (executor instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+			gauge(out, "webshare_executor_queue_depth", "Requests waiting for a thread.", pool.getQueue().size());
+			gauge(out, "webshare_executor_active_threads", "Threads processing requests.", pool.getActiveCount());
+		}
+
+		counter(out, "webshare_uploads_total", "Uploaded files.", this.uploads.sum());
+		counter(out, "webshare_upload_bytes_total", "Bytes of uploaded files.", this.uploadBytes.sum());
+		counter(out, "webshare_proxy_hits_total", "Proxy requests served from disk.", this.proxyHits.sum());
+		counter(out, "webshare_proxy_misses_total", "Proxy requests forwarded to the upstream.", this.proxyMisses.sum());
+		counter(out, "webshare_proxy_errors_total", "Failed proxy requests.", this.proxyErrors.sum());
+		counter(out, "webshare_proxy_bytes_total", "Bytes received from the upstream.", this.proxyBytes.sum());
+		return out.toString();
+	}
+
+	private static void gauge(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" gauge\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void counter(StringBuilder out, String name, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+}
@@ -0,0 +1,352 @@
+package kmz.webshare;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Streaming parser of `multipart/form-data` request bodies.
+ * The body is read into a large direct buffer, reused by the following requests, and searched for the delimiters
+ * with the Boyer-Moore-Horspool algorithm: most bytes of the content are skipped without being compared.
+ * The content of a part can be written from the buffer directly to a channel, without copying it through the heap.
+ */
+public class MultipartParser {
+
+	private static final int MAX_HEADER_SIZE = 16 << 10;
+	private static final int MAX_BOUNDARY_SIZE = 256;
+
+	private final ReadableByteChannel in;
+	private final Charset charset;
+	private final ByteBuffer buffer;
+	// "\r\n--" followed by the boundary.
+	private final byte[] delimiter;
+	// distance to shift the search window, by the last byte of the window.
+	private final int[] skip = new int[256];
+
+	// the bytes of the buffer before `end` are content of the current part.
+	private int end;
+	// position where the search for the delimiter resumes.
+	private int scanned;
+	// the delimiter starts at `end`.
+	private boolean found;
+	// the closing delimiter was read.
+	private boolean done;
+	private Part part;
+
+	public MultipartParser(InputStream in, byte[] boundary, Charset charset) throws IOException {
+		if (boundary.length == 0 || boundary.length > MAX_BOUNDARY_SIZE) {
+			throw new IOException("Invalid multipart boundary");
+		}
+		// the request body of the nio server can be read directly into the buffer.
+		this.in = in instanceof ReadableByteChannel ? (ReadableByteChannel) in : Channels.newChannel(in);
+		this.charset = charset;
+
+		this.delimiter = new byte[boundary.length + 4];
+		this.delimiter[0] = '\r';
+		this.delimiter[1] = '\n';
+		this.delimiter[2] = '-';
+		this.delimiter[3] = '-';
+		System.arraycopy(boundary, 0, this.delimiter, 4, boundary.length);
+		int last = this.delimiter.length - 1;
+		for (int i = 0; i < this.skip.length; i += 1) {
+			this.skip[i] = this.delimiter.length;
+		}
+		for (int i = 0; i < last; i += 1) {
+			this.skip[this.delimiter[i] & 0xff] = last - i;
+		}
+
+		this.buffer = Utils.acquireBuffer();
+		// the first delimiter is not preceded by a line break, the preamble is skipped like the content of a part.
+		this.buffer.put((byte) '\r').put((byte) '\n');
+		this.buffer.flip();
+		this.end = 0;
+		this.scanned = 0;
+	}
+
+	/**
+	 * Skip the rest of the current part, and read the headers of the next one.
+	 * @return the next part, or null after the last part.
+	 */
+	public Part nextPart() throws IOException {
+		if (this.done) {
+			return null;
+		}
+		if (this.part != null) {
+			this.part.body.skipAll();
+		}
+		else {
+			// skip the preamble.
+			while (this.advance()) {
+				this.buffer.position(this.end);
+			}
+		}
+
+		this.require(this.delimiter.length + 2);
+		this.buffer.position(this.buffer.position() + this.delimiter.length);
+		if (this.buffer.get(this.buffer.position()) == '-' && this.buffer.get(this.buffer.position() + 1) == '-') {
+			this.done = true;
+			this.part = null;
+			return null;
+		}
+		// the rest of the delimiter line is padding.
+		this.readLine();
+
+		Map<String, String> headers = new HashMap<>();
+		String line;
+		int size = 0;
+		while (!(line = this.readLine()).isEmpty()) {
+			size += line.length();
+			if (size > MAX_HEADER_SIZE) {
+				throw new IOException("Multipart headers too large");
+			}
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+			}
+		}
+
+		this.found = false;
+		this.end = this.buffer.position();
+		this.scanned = this.end;
+		this.scan();
+		this.part = new Part(headers, new Body());
+		return this.part;
+	}
+
+	// release the buffer, the parts can no longer be read.
+	public void close() {
+		Utils.releaseBuffer(this.buffer);
+	}
+
+	/**
+	 * Parse the parameters of a header value, ex: `form-data; name="file"; filename="a.txt"`.
+	 * The names are in lower case, quoted values are unquoted.
+	 */
+	public static Map<String, String> parseParameters(String value) {
+		Map<String, String> result = new HashMap<>();
+		if (value == null) {
+			return result;
+		}
+		int length = value.length();
+		int i = value.indexOf(';');
+		while (i >= 0) {
+			int eq = value.indexOf('=', i + 1);
+			int next = value.indexOf(';', i + 1);
+			if (eq < 0 || (next >= 0 && next < eq)) {
+				// a parameter without value.
+				i = next;
+				continue;
+			}
+			String key = value.substring(i + 1, eq).trim().toLowerCase(Locale.ROOT);
+			i = eq + 1;
+			while (i < length && value.charAt(i) == ' ') {
+				i += 1;
+			}
+			if (i < length && value.charAt(i) == '"') {
+				StringBuilder quoted = new StringBuilder();
+				for (i += 1; i < length && value.charAt(i) != '"'; i += 1) {
+					char c = value.charAt(i);
+					// only quotes and backslashes are escaped, browsers send windows paths as they are.
+					if (c == '\\' && i + 1 < length && (value.charAt(i + 1) == '"' || value.charAt(i + 1) == '\\')) {
+						i += 1;
+						c = value.charAt(i);
+					}
+					quoted.append(c);
+				}
+				result.put(key, quoted.toString());
+				next = value.indexOf(';', i);
+			}
+			else {
+				result.put(key, value.substring(i, next < 0 ? length : next).trim());
+			}
+			i = next;
+		}
+		return result;
+	}
+
+	/**
+	 * Make content of the current part available before `end`, reading more of the request if needed.
+	 * @return false if the content ends at the position of the buffer.
+	 */
+	private boolean advance() throws IOException {
+		while (this.buffer.position() == this.end) {
+			if (this.found) {
+				return false;
+			}
+			this.fill();
+			this.scan();
+		}
+		return true;
+	}
+
+	// search the delimiter in the buffer, the bytes which may start a delimiter are kept until more is read.
+	private void scan() {
+		int index = this.search(this.scanned, this.buffer.limit());
+		if (index >= 0) {
+			this.end = index;
+			this.found = true;
+		}
+		else {
+			this.end = Math.max(this.buffer.position(), this.buffer.limit() - this.delimiter.length + 1);
+			this.scanned = this.end;
+		}
+	}
+
+	// Boyer-Moore-Horspool search of the delimiter in the buffer between `from` and `to`.
+	private int search(int from, int to) {
+		ByteBuffer buffer = this.buffer;
+		byte[] delimiter = this.delimiter;
+		int last = delimiter.length - 1;
+		byte lastByte = delimiter[last];
+		for (int i = from; i + last < to; ) {
+			byte b = buffer.get(i + last);
+			if (b == lastByte) {
+				int j = last - 1;
+				while (j >= 0 && buffer.get(i + j) == delimiter[j]) {
+					j -= 1;
+				}
+				if (j < 0) {
+					return i;
+				}
+			}
+			i += this.skip[b & 0xff];
+		}
+		return -1;
+	}
+
+	// read more of the request, the unread bytes are moved to the start of the buffer.
+	private void fill() throws IOException {
+		int shift = this.buffer.position();
+		this.buffer.compact();
+		try {
+			if (this.in.read(this.buffer) < 0) {
+				throw new EOFException("Unexpected end of multipart body");
+			}
+		}
+		finally {
+			this.buffer.flip();
+			this.end -= shift;
+			this.scanned -= shift;
+		}
+	}
+
+	// make sure `count` bytes are available at the position of the buffer.
+	private void require(int count) throws IOException {
+		while (this.buffer.remaining() < count) {
+			this.fill();
+		}
+	}
+
+	// read a line of the part headers, without the line break.
+	private String readLine() throws IOException {
+		int start = this.buffer.position();
+		int index = start;
+		while (true) {
+			if (index + 1 >= this.buffer.limit()) {
+				if (index - start > MAX_HEADER_SIZE) {
+					throw new IOException("Multipart headers too large");
+				}
+				int shift = this.buffer.position();
+				this.fill();
+				start -= shift;
+				index -= shift;
+				continue;
+			}
+			if (this.buffer.get(index) == '\r' && this.buffer.get(index + 1) == '\n') {
+				break;
+			}
+			index += 1;
+		}
+		byte[] line = new byte[index - start];
+		this.buffer.get(line);
+		this.buffer.position(index + 2);
+		return new String(line, this.charset);
+	}
+
+	/**
+	 * A part of the multipart body: its headers, and its content, which must be read before the next part.
+	 */
+	public static class Part {
+		private final Map<String, String> headers;
+		private final Body body;
+
+		Part(Map<String, String> headers, Body body) {
+			this.headers = headers;
+			this.body = body;
+		}
+
+		// value of the header, the name is not case sensitive.
+		public String getHeader(String name) {
+			return this.headers.get(name.toLowerCase(Locale.ROOT));
+		}
+
+		public Body getBody() {
+			return this.body;
+		}
+	}
+
+	/**
+	 * Content of the current part, ends before the next delimiter.
+	 */
+	public class Body extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			if (!MultipartParser.this.advance()) {
+				return -1;
+			}
+			return MultipartParser.this.buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!MultipartParser.this.advance()) {
+				return -1;
+			}
+			ByteBuffer buffer = MultipartParser.this.buffer;
+			int n = Math.min(len, MultipartParser.this.end - buffer.position());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		/**
+		 * Write the rest of the content to the channel, directly from the buffer.
+		 * @param digest updated with the content as it is written, if not null.
+		 * @return the number of bytes written.
+		 */
+		public long writeTo(WritableByteChannel out, MessageDigest digest) throws IOException {
+			ByteBuffer buffer = MultipartParser.this.buffer;
+			long total = 0;
+			while (MultipartParser.this.advance()) {
+				ByteBuffer content = buffer.duplicate();
+				content.limit(MultipartParser.this.end);
+				if (digest != null) {
+					digest.update(content.duplicate());
+				}
+				while (content.hasRemaining()) {
+					total += out.write(content);
+				}
+				buffer.position(MultipartParser.this.end);
+			}
+			return total;
+		}
+
+		private void skipAll() throws IOException {
+			while (MultipartParser.this.advance()) {
+				MultipartParser.this.buffer.position(MultipartParser.this.end);
+			}
+		}
+	}
+}
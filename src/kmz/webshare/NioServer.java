@@ -0,0 +1,1164 @@
+package kmz.webshare;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * HTTP/1.1 server built on non-blocking channels, a replacement of the jdk server.
+ * Connections are distributed between several event loops, which wait for the next request on idle connections.
+ * When a request head is complete, the connection is handed to the executor, handlers use blocking streams,
+ * which wait for the socket using a private selector. Persistent connections and pipelined requests
+ * are served in order by the same task, file content is sent using `FileChannel.transferTo` directly to the socket.
+ */
+public class NioServer extends com.sun.net.httpserver.HttpServer {
+
+	private static final int INPUT_BUFFER_SIZE = 32 << 10;
+	private static final int OUTPUT_BUFFER_SIZE = 32 << 10;
+
+	// close connections idle for more than this.
+	private static final long IDLE_TIMEOUT = 30_000;
+
+	// give up on a client not reading or sending anything for this long.
+	private static final long IO_TIMEOUT = 60_000;
+
+	// drain at most this many bytes of an unread request body to keep the connection alive.
+	private static final long MAX_DRAIN = 64 << 10;
+
+	private static final byte[] CRLF = {'\r', '\n'};
+	private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	private final List<Context> contexts = new ArrayList<>();
+	private final EventLoop[] loops;
+	private ServerSocketChannel server = null;
+	private Executor executor = null;
+	private Thread acceptor = null;
+	private volatile boolean running = false;
+	private Metrics metrics = null;
+
+	public NioServer(InetSocketAddress address, int backlog, int eventLoops) throws IOException {
+		this.loops = new EventLoop[Math.max(1, eventLoops)];
+		if (address != null) {
+			this.bind(address, backlog);
+		}
+	}
+
+	public static NioServer create(InetSocketAddress address, int backlog) throws IOException {
+		return new NioServer(address, backlog, Runtime.getRuntime().availableProcessors());
+	}
+
+	@Override
+	public void bind(InetSocketAddress address, int backlog) throws IOException {
+		if (this.server != null) {
+			throw new IllegalStateException("server already bound");
+		}
+		this.server = ServerSocketChannel.open();
+		this.server.bind(address, backlog);
+	}
+
+	@Override
+	public void start() {
+		if (this.server == null || this.running) {
+			throw new IllegalStateException("server not bound or already started");
+		}
+		this.running = true;
+		try {
+			for (int i = 0; i < this.loops.length; i += 1) {
+				this.loops[i] = new EventLoop(i);
+				this.loops[i].thread.start();
+			}
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		this.acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int next = 0;
+				while (running) {
+					try {
+						SocketChannel channel = server.accept();
+						channel.configureBlocking(false);
+						channel.socket().setTcpNoDelay(true);
+						EventLoop loop = loops[next];
+						next = (next + 1) % loops.length;
+						loop.resume(new Connection(channel, loop));
+					}
+					catch (ClosedChannelException e) {
+						break;
+					}
+					catch (IOException e) {
+						WebShare.log(e, "accept failed");
+					}
+				}
+			}
+		}, "nio-acceptor");
+		this.acceptor.start();
+	}
+
+	// report open connections to the given metrics.
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+		metrics.setTrackConnections(true);
+	}
+
+	@Override
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return this.executor;
+	}
+
+	@Override
+	public void stop(int delay) {
+		this.running = false;
+		Utils.close(this.server);
+		for (EventLoop loop : this.loops) {
+			if (loop != null) {
+				loop.selector.wakeup();
+			}
+		}
+	}
+
+	@Override
+	public synchronized HttpContext createContext(String path, HttpHandler handler) {
+		Context context = new Context(path, handler);
+		this.contexts.add(context);
+		return context;
+	}
+
+	@Override
+	public HttpContext createContext(String path) {
+		return this.createContext(path, null);
+	}
+
+	@Override
+	public synchronized void removeContext(String path) {
+		for (Context context : this.contexts) {
+			if (context.path.equals(path)) {
+				this.contexts.remove(context);
+				return;
+			}
+		}
+		throw new IllegalArgumentException("no context: " + path);
+	}
+
+	@Override
+	public synchronized void removeContext(HttpContext context) {
+		this.contexts.remove(context);
+	}
+
+	@Override
+	public InetSocketAddress getAddress() {
+		try {
+			return (InetSocketAddress) this.server.getLocalAddress();
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	// find the context with the longest matching path.
+	private synchronized Context findContext(String path) {
+		Context result = null;
+		for (Context context : this.contexts) {
+			if (path.startsWith(context.path)) {
+				if (result == null || context.path.length() > result.path.length()) {
+					result = context;
+				}
+			}
+		}
+		return result;
+	}
+
+	private void dispatch(Connection connection) {
+		Executor executor = this.executor;
+		if (executor == null) {
+			connection.run();
+			return;
+		}
+		executor.execute(connection);
+	}
+
+	private class Context extends HttpContext {
+		private final String path;
+		private final Map<String, Object> attributes = new HashMap<>();
+		private final List<Filter> filters = new ArrayList<>();
+		private HttpHandler handler;
+		private Authenticator authenticator;
+
+		Context(String path, HttpHandler handler) {
+			this.path = path;
+			this.handler = handler;
+		}
+
+		@Override
+		public HttpHandler getHandler() {
+			return this.handler;
+		}
+
+		@Override
+		public void setHandler(HttpHandler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public String getPath() {
+			return this.path;
+		}
+
+		@Override
+		public com.sun.net.httpserver.HttpServer getServer() {
+			return NioServer.this;
+		}
+
+		@Override
+		public Map<String, Object> getAttributes() {
+			return this.attributes;
+		}
+
+		@Override
+		public List<Filter> getFilters() {
+			return this.filters;
+		}
+
+		@Override
+		public Authenticator setAuthenticator(Authenticator authenticator) {
+			Authenticator result = this.authenticator;
+			this.authenticator = authenticator;
+			return result;
+		}
+
+		@Override
+		public Authenticator getAuthenticator() {
+			return this.authenticator;
+		}
+	}
+
+	/**
+	 * Event loop waiting for requests on idle connections.
+	 */
+	private class EventLoop implements Runnable {
+		private final Thread thread;
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Connection> pending = new ConcurrentLinkedQueue<>();
+
+		EventLoop(int index) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, "nio-loop-" + index);
+			this.thread.setDaemon(true);
+		}
+
+		// start waiting for the next request on the connection.
+		void resume(Connection connection) {
+			this.pending.add(connection);
+			this.selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			long lastCheck = System.currentTimeMillis();
+			while (running) {
+				try {
+					this.selector.select(1000);
+
+					Connection connection;
+					while ((connection = this.pending.poll()) != null) {
+						connection.idleSince = System.currentTimeMillis();
+						if (connection.key == null) {
+							connection.key = connection.channel.register(this.selector, SelectionKey.OP_READ, connection);
+						}
+						else if (connection.key.isValid()) {
+							connection.key.interestOps(SelectionKey.OP_READ);
+						}
+					}
+
+					for (SelectionKey key : this.selector.selectedKeys()) {
+						connection = (Connection) key.attachment();
+						if (key.isValid() && key.isReadable()) {
+							connection.onReadable();
+						}
+					}
+					this.selector.selectedKeys().clear();
+
+					long now = System.currentTimeMillis();
+					if (now - lastCheck >= 1000) {
+						lastCheck = now;
+						for (SelectionKey key : this.selector.keys()) {
+							connection = (Connection) key.attachment();
+							if (key.isValid() && key.interestOps() != 0 && now - connection.idleSince > IDLE_TIMEOUT) {
+								connection.close();
+							}
+						}
+					}
+				}
+				catch (Exception e) {
+					WebShare.log(e, "event loop failed");
+				}
+			}
+			for (SelectionKey key : this.selector.keys()) {
+				((Connection) key.attachment()).close();
+			}
+			Utils.close(this.selector);
+		}
+	}
+
+	/**
+	 * A client connection, requests are processed one after the other.
+	 * The input buffer is kept in read mode: unprocessed bytes are between position and limit.
+	 */
+	private class Connection implements Runnable {
+		private final SocketChannel channel;
+		private final EventLoop loop;
+		private final ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+		private final ByteBuffer output = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+		private final AtomicBoolean closed = new AtomicBoolean();
+		private SelectionKey key = null;
+		private Selector waitSelector = null;
+		private long idleSince;
+
+		Connection(SocketChannel channel, EventLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+			this.input.flip();
+			if (metrics != null) {
+				metrics.activeConnections.incrementAndGet();
+			}
+		}
+
+		// called by the event loop when new bytes arrived.
+		void onReadable() {
+			try {
+				this.input.compact();
+				int n = this.channel.read(this.input);
+				this.input.flip();
+				if (n < 0) {
+					this.close();
+					return;
+				}
+				if (this.headLength() > 0 || this.input.limit() == this.input.capacity()) {
+					// complete (or too large) request head.
+					this.key.interestOps(0);
+					dispatch(this);
+				}
+			}
+			catch (IOException e) {
+				this.close();
+			}
+		}
+
+		// length of the request head in the buffer, including the terminating empty line, or 0 if incomplete.
+		int headLength() {
+			int start = this.input.position();
+			int end = this.input.limit();
+			byte[] data = this.input.array();
+			for (int i = start; i + 3 < end; i += 1) {
+				if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+					return i + 4 - start;
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (this.channel.isOpen()) {
+					int headLength = this.headLength();
+					if (headLength == 0) {
+						if (this.input.limit() == this.input.capacity() && this.input.position() == 0) {
+							this.sendError(431, "Request Header Fields Too Large");
+						}
+						// wait for the rest of the request on the event loop.
+						this.loop.resume(this);
+						return;
+					}
+
+					Exchange exchange = this.parseRequest(headLength);
+					if (exchange == null) {
+						return;
+					}
+
+					String path = exchange.getRequestURI().getPath();
+					Context context = findContext(Utils.isNullOrEmpty(path) ? "/" : path);
+					if (context == null || context.handler == null) {
+						exchange.getResponseHeaders().set(HttpServer.CONTENT_TYPE, HttpServer.CONTENT_TYPE_TEXT_PLAIN_CHARSET);
+						exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+					}
+					else {
+						exchange.context = context;
+						try {
+							new Filter.Chain(context.filters, context.handler).doFilter(exchange);
+						}
+						catch (Throwable e) {
+							WebShare.log(e, "request failed: `%s`", exchange.getRequestURI());
+						}
+					}
+
+					if (!exchange.finish()) {
+						this.close();
+						return;
+					}
+				}
+			}
+			catch (IOException e) {
+				this.close();
+			}
+			catch (RuntimeException e) {
+				// the state of the connection is unknown, it must not be left open and unwatched.
+				WebShare.log(e, "connection failed");
+				this.close();
+			}
+		}
+
+		private Exchange parseRequest(int headLength) throws IOException {
+			int start = this.input.position();
+			String head = new String(this.input.array(), start, headLength, StandardCharsets.ISO_8859_1);
+			this.input.position(start + headLength);
+
+			String[] lines = head.split("\r\n");
+			String[] requestLine = lines[0].split(" ");
+			if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+				this.sendError(HttpURLConnection.HTTP_BAD_REQUEST, "Bad Request");
+				return null;
+			}
+
+			Headers headers = new Headers();
+			for (int i = 1; i < lines.length; i += 1) {
+				int colon = lines[i].indexOf(':');
+				if (colon <= 0) {
+					this.sendError(HttpURLConnection.HTTP_BAD_REQUEST, "Bad Request");
+					return null;
+				}
+				headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+			}
+
+			URI uri;
+			try {
+				uri = new URI(requestLine[1]);
+			}
+			catch (Exception e) {
+				this.sendError(HttpURLConnection.HTTP_BAD_REQUEST, "Bad Request");
+				return null;
+			}
+
+			// the body is framed by the chunked coding only if it is the last one, other codings are not supported.
+			boolean chunked = false;
+			List<String> transferEncoding = headers.get("Transfer-encoding");
+			if (transferEncoding != null) {
+				List<String> codings = new ArrayList<>();
+				for (String value : transferEncoding) {
+					for (String coding : value.split(",")) {
+						if (!coding.trim().isEmpty()) {
+							codings.add(coding.trim());
+						}
+					}
+				}
+				if (codings.isEmpty() || !"chunked".equalsIgnoreCase(codings.get(codings.size() - 1))) {
+					this.sendError(HttpURLConnection.HTTP_BAD_REQUEST, "Bad Request");
+					return null;
+				}
+				if (codings.size() > 1) {
+					this.sendError(HttpURLConnection.HTTP_NOT_IMPLEMENTED, "Not Implemented");
+					return null;
+				}
+				chunked = true;
+			}
+			return new Exchange(this, requestLine[0], uri, requestLine[2], headers, chunked);
+		}
+
+		// send a minimal response and close the connection.
+		private void sendError(int code, String message) throws IOException {
+			String response = String.format("HTTP/1.1 %d %s\r\nContent-Length: 0\r\nConnection: close\r\n\r\n", code, message);
+			this.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+			this.close();
+		}
+
+		// wait until the channel is ready for the given operation.
+		void await(int ops) throws IOException {
+			if (this.waitSelector == null) {
+				this.waitSelector = Selector.open();
+			}
+			this.channel.register(this.waitSelector, ops);
+			try {
+				if (this.waitSelector.select(IO_TIMEOUT) == 0) {
+					throw new SocketTimeoutException("connection timed out");
+				}
+			}
+			finally {
+				this.waitSelector.selectedKeys().clear();
+			}
+		}
+
+		// read some bytes into the input buffer, blocking if none available.
+		void fill() throws IOException {
+			this.input.compact();
+			try {
+				int n;
+				while ((n = this.channel.read(this.input)) == 0) {
+					this.await(SelectionKey.OP_READ);
+				}
+				if (n < 0) {
+					throw new EOFException("connection closed by client");
+				}
+			}
+			finally {
+				this.input.flip();
+			}
+		}
+
+		// read directly into the destination, used when no bytes are buffered.
+		int read(ByteBuffer dst) throws IOException {
+			int n;
+			while ((n = this.channel.read(dst)) == 0) {
+				this.await(SelectionKey.OP_READ);
+			}
+			return n;
+		}
+
+		// write all the buffers, blocking until done.
+		void write(ByteBuffer... buffers) throws IOException {
+			long remaining = 0;
+			for (ByteBuffer buffer : buffers) {
+				remaining += buffer.remaining();
+			}
+			while (remaining > 0) {
+				long n = this.channel.write(buffers);
+				if (n == 0) {
+					this.await(SelectionKey.OP_WRITE);
+				}
+				remaining -= n;
+			}
+		}
+
+		long transfer(FileChannel in, long position, long count) throws IOException {
+			long end = position + count;
+			while (position < end) {
+				long n = in.transferTo(position, end - position, this.channel);
+				if (n == 0) {
+					if (position >= in.size()) {
+						throw new EOFException("File truncated while sending");
+					}
+					this.await(SelectionKey.OP_WRITE);
+				}
+				position += n;
+			}
+			return count;
+		}
+
+		void close() {
+			if (this.closed.compareAndSet(false, true)) {
+				Utils.close(this.channel);
+				Utils.close(this.waitSelector);
+				if (metrics != null) {
+					metrics.activeConnections.decrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Request body of a known length, or chunked.
+	 * Can also be read as a channel, large reads go from the socket directly to the destination buffer.
+	 */
+	private static class RequestBody extends InputStream implements ReadableByteChannel {
+		private final Connection connection;
+		private final boolean chunked;
+		private long remaining;
+		private boolean eof;
+
+		RequestBody(Connection connection, long length, boolean chunked) {
+			this.connection = connection;
+			this.chunked = chunked;
+			this.remaining = chunked ? 0 : length;
+			this.eof = !chunked && length <= 0;
+		}
+
+		private int readByte() throws IOException {
+			if (!this.connection.input.hasRemaining()) {
+				this.connection.fill();
+			}
+			return this.connection.input.get() & 0xff;
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = this.readByte()) != '\n') {
+				if (line.length() > 1024) {
+					throw new IOException("invalid chunk header");
+				}
+				if (c != '\r') {
+					line.append((char) c);
+				}
+			}
+			return line.toString();
+		}
+
+		// check if there is data available, parsing the next chunk header if needed.
+		private boolean available(boolean block) throws IOException {
+			if (this.eof) {
+				return false;
+			}
+			if (this.remaining > 0) {
+				return true;
+			}
+			if (!this.chunked) {
+				this.eof = true;
+				return false;
+			}
+			if (!block) {
+				return false;
+			}
+
+			String line = this.readLine();
+			if (line.isEmpty()) {
+				// end of previous chunk data
+				line = this.readLine();
+			}
+			int ext = line.indexOf(';');
+			if (ext >= 0) {
+				line = line.substring(0, ext);
+			}
+			line = line.trim();
+			// hex digits only, no sign, fitting in a positive long.
+			if (line.isEmpty() || line.length() > 15) {
+				throw new IOException("invalid chunk size: " + line);
+			}
+			for (int i = 0; i < line.length(); i += 1) {
+				if (Character.digit(line.charAt(i), 16) < 0) {
+					throw new IOException("invalid chunk size: " + line);
+				}
+			}
+			this.remaining = Long.parseLong(line, 16);
+			if (this.remaining == 0) {
+				// skip trailers
+				while (!this.readLine().isEmpty()) {
+					continue;
+				}
+				this.eof = true;
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!this.available(true)) {
+				return -1;
+			}
+			this.remaining -= 1;
+			return this.readByte();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!this.available(true)) {
+				return -1;
+			}
+			len = (int) Math.min(len, this.remaining);
+			ByteBuffer input = this.connection.input;
+			int n;
+			if (input.hasRemaining()) {
+				n = Math.min(len, input.remaining());
+				input.get(b, off, n);
+			}
+			else {
+				n = this.connection.read(ByteBuffer.wrap(b, off, len));
+				if (n < 0) {
+					throw new EOFException("connection closed by client");
+				}
+			}
+			this.remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!dst.hasRemaining()) {
+				return 0;
+			}
+			if (!this.available(true)) {
+				return -1;
+			}
+			int len = (int) Math.min(dst.remaining(), this.remaining);
+			ByteBuffer input = this.connection.input;
+			int n;
+			if (input.hasRemaining()) {
+				n = Math.min(len, input.remaining());
+				ByteBuffer buffered = input.duplicate();
+				buffered.limit(buffered.position() + n);
+				dst.put(buffered);
+				input.position(input.position() + n);
+			}
+			else {
+				int limit = dst.limit();
+				dst.limit(dst.position() + len);
+				try {
+					n = this.connection.read(dst);
+				}
+				finally {
+					dst.limit(limit);
+				}
+				if (n < 0) {
+					throw new EOFException("connection closed by client");
+				}
+			}
+			this.remaining -= n;
+			return n;
+		}
+
+		// the connection outlives the request body.
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (!this.available(false)) {
+				return 0;
+			}
+			return (int) Math.min(this.remaining, this.connection.input.remaining());
+		}
+
+		// skip the rest of the body, returns false if it was too large.
+		boolean drain() throws IOException {
+			byte[] buff = new byte[8 << 10];
+			long drained = 0;
+			int n;
+			while (drained < MAX_DRAIN && (n = this.read(buff, 0, buff.length)) > 0) {
+				drained += n;
+			}
+			return this.eof;
+		}
+	}
+
+	/**
+	 * Response body: fixed length, chunked, or delimited by closing the connection.
+	 */
+	private static class ResponseBody extends OutputStream implements Utils.FileTransferTarget {
+		private final Connection connection;
+		private final ByteBuffer buffer;
+		private ByteBuffer head;
+		private final boolean chunked;
+		private final boolean discard;
+		private long remaining;
+		private boolean closed = false;
+
+		ResponseBody(Connection connection, byte[] head, long length, boolean chunked, boolean discard) {
+			this.connection = connection;
+			this.buffer = connection.output;
+			this.buffer.clear();
+			this.head = ByteBuffer.wrap(head);
+			this.remaining = discard ? 0 : length;
+			this.chunked = chunked;
+			this.discard = discard;
+		}
+
+		// check if the whole response body was sent.
+		boolean isComplete() {
+			return this.closed && (this.chunked || this.remaining <= 0);
+		}
+
+		private void checkLength(long length) throws IOException {
+			if (this.closed) {
+				throw new IOException("stream closed");
+			}
+			if (!this.chunked && length > this.remaining) {
+				throw new IOException("too many bytes to write to stream");
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (this.discard) {
+				return;
+			}
+			this.checkLength(len);
+			this.remaining -= len;
+			while (len > 0) {
+				if (!this.buffer.hasRemaining()) {
+					this.send(false);
+				}
+				int n = Math.min(len, this.buffer.remaining());
+				this.buffer.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public long transferFrom(FileChannel in, long position, long count) throws IOException {
+			if (this.discard) {
+				return count;
+			}
+			// an empty chunk would be the last chunk, ending the body.
+			if (count == 0) {
+				return 0;
+			}
+			this.checkLength(count);
+			this.remaining -= count;
+			this.send(false);
+			if (this.chunked) {
+				this.connection.write(ByteBuffer.wrap((Long.toHexString(count) + "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+				this.connection.transfer(in, position, count);
+				this.connection.write(ByteBuffer.wrap(CRLF));
+				return count;
+			}
+			return this.connection.transfer(in, position, count);
+		}
+
+		// send the head and the buffered bytes.
+		private void send(boolean last) throws IOException {
+			this.buffer.flip();
+			List<ByteBuffer> buffers = new ArrayList<>(5);
+			if (this.head != null) {
+				buffers.add(this.head);
+				this.head = null;
+			}
+			if (this.chunked && this.buffer.hasRemaining()) {
+				buffers.add(ByteBuffer.wrap((Integer.toHexString(this.buffer.remaining()) + "\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+				buffers.add(this.buffer);
+				buffers.add(ByteBuffer.wrap(CRLF));
+			}
+			else {
+				buffers.add(this.buffer);
+			}
+			if (this.chunked && last) {
+				buffers.add(ByteBuffer.wrap(LAST_CHUNK));
+			}
+			this.connection.write(buffers.toArray(new ByteBuffer[0]));
+			this.buffer.clear();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (!this.closed) {
+				this.send(false);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.closed) {
+				return;
+			}
+			this.send(true);
+			this.closed = true;
+		}
+	}
+
+	private class Exchange extends HttpExchange {
+		private final Connection connection;
+		private final String method;
+		private final URI uri;
+		private final String protocol;
+		private final Headers requestHeaders;
+		private final Headers responseHeaders = new Headers();
+		private final Map<String, Object> attributes = new HashMap<>();
+		private final RequestBody requestBody;
+		private final boolean expectContinue;
+		private Context context = null;
+		private ResponseBody responseBody = null;
+		private InputStream requestStream;
+		private OutputStream responseStream;
+		private boolean keepAlive;
+		private int responseCode = -1;
+
+		Exchange(Connection connection, String method, URI uri, String protocol, Headers headers, boolean chunked) throws IOException {
+			this.connection = connection;
+			this.method = method;
+			this.uri = uri;
+			this.protocol = protocol;
+			this.requestHeaders = headers;
+
+			String connectionHeader = headers.getFirst("Connection");
+			if (protocol.equals("HTTP/1.0")) {
+				this.keepAlive = "keep-alive".equalsIgnoreCase(connectionHeader);
+			}
+			else {
+				this.keepAlive = !"close".equalsIgnoreCase(connectionHeader);
+			}
+
+			long length = 0;
+			String contentLength = headers.getFirst(HttpServer.CONTENT_LENGTH);
+			if (!chunked && contentLength != null) {
+				try {
+					length = Long.parseLong(contentLength.trim());
+				}
+				catch (NumberFormatException e) {
+					throw new IOException("invalid content length: " + contentLength);
+				}
+			}
+			this.requestBody = new RequestBody(connection, length, chunked);
+			this.requestStream = this.requestBody;
+			this.expectContinue = (chunked || length > 0) && "100-continue".equalsIgnoreCase(headers.getFirst("Expect"));
+			if (this.expectContinue) {
+				// no need to delay the client: the request is going to be processed anyway.
+				connection.write(ByteBuffer.wrap(CONTINUE));
+			}
+		}
+
+		@Override
+		public Headers getRequestHeaders() {
+			return this.requestHeaders;
+		}
+
+		@Override
+		public Headers getResponseHeaders() {
+			return this.responseHeaders;
+		}
+
+		@Override
+		public URI getRequestURI() {
+			return this.uri;
+		}
+
+		@Override
+		public String getRequestMethod() {
+			return this.method;
+		}
+
+		@Override
+		public HttpContext getHttpContext() {
+			return this.context;
+		}
+
+		@Override
+		public InputStream getRequestBody() {
+			return this.requestStream;
+		}
+
+		@Override
+		public OutputStream getResponseBody() {
+			if (this.responseStream == null) {
+				// fail on write if the response headers were not sent
+				return new OutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						this.write(new byte[] {(byte) b}, 0, 1);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						if (responseStream == null) {
+							throw new IOException("response headers not sent yet");
+						}
+						responseStream.write(b, off, len);
+					}
+				};
+			}
+			return this.responseStream;
+		}
+
+		@Override
+		public void sendResponseHeaders(int code, long length) throws IOException {
+			if (this.responseBody != null) {
+				throw new IOException("headers already sent");
+			}
+
+			boolean head = HttpServer.METHOD_HEAD.equals(this.method);
+			boolean noBody = code < 200 || code == HttpURLConnection.HTTP_NO_CONTENT || code == HttpURLConnection.HTTP_NOT_MODIFIED;
+			boolean chunked = false;
+
+			this.responseHeaders.remove(HttpServer.CONTENT_LENGTH);
+			this.responseHeaders.remove("Transfer-encoding");
+			this.responseHeaders.remove("Connection");
+			this.responseHeaders.set("Date", Utils.formatHttpDate(System.currentTimeMillis()));
+
+			if (noBody) {
+				length = 0;
+			}
+			else if (length > 0) {
+				this.responseHeaders.set(HttpServer.CONTENT_LENGTH, Long.toString(length));
+			}
+			else if (length < 0) {
+				length = 0;
+				this.responseHeaders.set(HttpServer.CONTENT_LENGTH, "0");
+			}
+			else if (this.protocol.equals("HTTP/1.0")) {
+				// length not known and chunked encoding not supported by the client.
+				length = Long.MAX_VALUE;
+				this.keepAlive = false;
+			}
+			else {
+				chunked = true;
+				this.responseHeaders.set("Transfer-encoding", "chunked");
+			}
+			if (!this.keepAlive) {
+				this.responseHeaders.set("Connection", "close");
+			}
+			else if (this.protocol.equals("HTTP/1.0")) {
+				this.responseHeaders.set("Connection", "keep-alive");
+			}
+
+			StringBuilder text = new StringBuilder();
+			text.append("HTTP/1.1 ").append(code).append(' ').append(reasonPhrase(code)).append("\r\n");
+			for (Map.Entry<String, List<String>> header : this.responseHeaders.entrySet()) {
+				for (String value : header.getValue()) {
+					text.append(header.getKey()).append(": ").append(value).append("\r\n");
+				}
+			}
+			text.append("\r\n");
+
+			this.responseCode = code;
+			this.responseBody = new ResponseBody(this.connection, text.toString().getBytes(StandardCharsets.ISO_8859_1), length, chunked && !head, head);
+			this.responseStream = this.responseBody;
+			if (noBody || head || (length == 0 && !chunked)) {
+				this.responseBody.close();
+			}
+		}
+
+		@Override
+		public InetSocketAddress getRemoteAddress() {
+			try {
+				return (InetSocketAddress) this.connection.channel.getRemoteAddress();
+			}
+			catch (IOException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public int getResponseCode() {
+			return this.responseCode;
+		}
+
+		@Override
+		public InetSocketAddress getLocalAddress() {
+			try {
+				return (InetSocketAddress) this.connection.channel.getLocalAddress();
+			}
+			catch (IOException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public String getProtocol() {
+			return this.protocol;
+		}
+
+		@Override
+		public Object getAttribute(String name) {
+			return this.attributes.get(name);
+		}
+
+		@Override
+		public void setAttribute(String name, Object value) {
+			this.attributes.put(name, value);
+		}
+
+		@Override
+		public void setStreams(InputStream input, OutputStream output) {
+			if (input != null) {
+				this.requestStream = input;
+			}
+			if (output != null) {
+				this.responseStream = output;
+			}
+		}
+
+		@Override
+		public HttpPrincipal getPrincipal() {
+			return null;
+		}
+
+		@Override
+		public void close() {
+			try {
+				this.finish();
+			}
+			catch (IOException e) {
+				this.keepAlive = false;
+			}
+		}
+
+		// complete the response, returns true if the connection can be used for the next request.
+		boolean finish() throws IOException {
+			if (this.responseBody == null) {
+				// no response was sent.
+				this.keepAlive = false;
+				return false;
+			}
+			if (!this.responseBody.closed) {
+				this.responseBody.close();
+			}
+			if (!this.responseBody.isComplete()) {
+				this.keepAlive = false;
+			}
+			if (this.keepAlive && !this.requestBody.drain()) {
+				this.keepAlive = false;
+			}
+			return this.keepAlive;
+		}
+	}
+
+	private static String reasonPhrase(int code) {
+		switch (code) {
+			case 200: return "OK";
+			case 201: return "Created";
+			case 202: return "Accepted";
+			case 204: return "No Content";
+			case 206: return "Partial Content";
+			case 301: return "Moved Permanently";
+			case 302: return "Found";
+			case 304: return "Not Modified";
+			case 400: return "Bad Request";
+			case 401: return "Unauthorized";
+			case 403: return "Forbidden";
+			case 404: return "Not Found";
+			case 405: return "Method Not Allowed";
+			case 409: return "Conflict";
+			case 413: return "Payload Too Large";
+			case 416: return "Range Not Satisfiable";
+			case 500: return "Internal Server Error";
+			case 501: return "Not Implemented";
+			case 503: return "Service Unavailable";
+			default: return "";
+		}
+	}
+}
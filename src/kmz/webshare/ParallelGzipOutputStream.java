@@ -0,0 +1,166 @@
+package kmz.webshare;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Gzip output stream compressing the content in parallel, like pigz.
+ * The content is split in blocks deflated by the workers of the zip writer, each block primed with the last 32 KB
+ * of the previous one, the compressed blocks are written in order and their checksums combined.
+ * At most a few blocks per worker are pending, the memory used does not depend on the length of the content.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+	private static final int BLOCK_SIZE = 128 << 10;
+	private static final int DICTIONARY_SIZE = 32 << 10;
+	private static final int MAX_PENDING = 2 * Runtime.getRuntime().availableProcessors() + 2;
+	private static final byte[] HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+	// a part of the content, after the dictionary from the previous part.
+	private static class Block implements Runnable {
+		final byte[] input;
+		final int start;
+		final int end;
+		final boolean last;
+		Future<?> future;
+		byte[] output;
+		long crc;
+
+		Block(byte[] input, int start, int end, boolean last) {
+			this.input = input;
+			this.start = start;
+			this.end = end;
+			this.last = last;
+		}
+
+		@Override
+		public void run() {
+			CRC32 crc = new CRC32();
+			crc.update(this.input, this.start, this.end - this.start);
+			this.crc = crc.getValue();
+			this.output = ZipWriter.deflate(this.input, this.start, this.end, this.last);
+		}
+	}
+
+	private final OutputStream out;
+	private final Deque<Block> pending = new ArrayDeque<>();
+	private byte[] buffer;
+	private int start;
+	private int count;
+	private long crc = 0;
+	private long length = 0;
+	private long written = 0;
+	private boolean finished = false;
+
+	public ParallelGzipOutputStream(OutputStream out) throws IOException {
+		this.out = out;
+		this.buffer = new byte[BLOCK_SIZE];
+		this.out.write(HEADER);
+		this.written += HEADER.length;
+	}
+
+	// number of compressed bytes written.
+	public long getLength() {
+		return this.written;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (this.count == this.buffer.length) {
+			this.submit(false);
+		}
+		this.buffer[this.count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (this.count == this.buffer.length) {
+				this.submit(false);
+			}
+			int n = Math.min(len, this.buffer.length - this.count);
+			System.arraycopy(b, off, this.buffer, this.count, n);
+			this.count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	// the content is compressed in whole blocks, only what is already compressed can be flushed.
+	@Override
+	public void flush() throws IOException {
+		this.out.flush();
+	}
+
+	// compress the rest of the content, and write the trailer, without closing the output.
+	public void finish() throws IOException {
+		if (this.finished) {
+			return;
+		}
+		this.submit(true);
+		while (!this.pending.isEmpty()) {
+			this.write(this.pending.poll());
+		}
+		byte[] trailer = new byte[8];
+		for (int i = 0; i < 4; i += 1) {
+			trailer[i] = (byte) (this.crc >>> (8 * i));
+			trailer[4 + i] = (byte) (this.length >>> (8 * i));
+		}
+		this.out.write(trailer);
+		this.written += trailer.length;
+		this.out.flush();
+		this.finished = true;
+	}
+
+	// close the output, an unfinished stream is abandoned: blocks not yet compressed are cancelled.
+	@Override
+	public void close() throws IOException {
+		for (Block block : this.pending) {
+			block.future.cancel(false);
+		}
+		this.pending.clear();
+		if (this.finished) {
+			this.out.close();
+		}
+		else {
+			Utils.close(this.out);
+		}
+	}
+
+	private void submit(boolean last) throws IOException {
+		while (this.pending.size() >= MAX_PENDING) {
+			this.write(this.pending.poll());
+		}
+		Block block = new Block(this.buffer, this.start, this.count, last);
+		block.future = ZipWriter.pool.submit(block);
+		this.pending.add(block);
+
+		// the next block starts with the end of this one.
+		int dictionary = Math.min(DICTIONARY_SIZE, this.count);
+		this.buffer = new byte[dictionary + BLOCK_SIZE];
+		System.arraycopy(block.input, this.count - dictionary, this.buffer, 0, dictionary);
+		this.start = dictionary;
+		this.count = dictionary;
+	}
+
+	private void write(Block block) throws IOException {
+		try {
+			block.future.get();
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Compression failed", e.getCause());
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted while compressing", e);
+		}
+		this.out.write(block.output);
+		this.written += block.output.length;
+		this.crc = ZipWriter.crc32Combine(this.crc, block.crc, block.end - block.start);
+		this.length += block.end - block.start;
+	}
+}
@@ -0,0 +1,235 @@
+package kmz.webshare;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads sent in chunks, which can be resumed after a failure, and sent in parallel over several connections.
+ * Chunks are written at their offset in a hidden file next to the target, the received ranges are tracked,
+ * and the file is moved to the target once every byte has arrived. Uploads without activity for a day are abandoned.
+ * The file is open only while a chunk is written, and a limited number of uploads can be in progress.
+ * Ids are chosen by the client, and identify an upload together with its target file.
+ */
+public class ResumableUploads {
+
+	private static final long EXPIRY_MILLIS = TimeUnit.DAYS.toMillis(1);
+	// progress of a chunk is recorded after each slice, an interrupted chunk resumes after the last complete slice.
+	private static final long SLICE_SIZE = 4 << 20;
+	// uploads in progress, more are refused until some complete or expire.
+	private static final int MAX_UPLOADS = 1024;
+	// suffix of the temporary files, also used by the uploads sent in one request.
+	private static final String TEMP_SUFFIX = ".upload";
+
+	// uploads in progress by target and id.
+	private final Map<String, Upload> uploads = new HashMap<>();
+
+	// the upload of the file, null if unknown, complete or abandoned.
+	public synchronized Upload get(File target, String id) {
+		this.expire();
+		return this.uploads.get(key(target, id));
+	}
+
+	/**
+	 * Delete the temporary files of the uploads interrupted by an exit, under the given directory.
+	 * Uploads are not resumed after a restart; files modified after the given time belong to new uploads and are kept.
+	 */
+	public static void deleteOrphans(Path root, final long before, final JobScheduler.Job job) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				String name = file.getFileName().toString();
+				if (name.startsWith(".") && name.endsWith(TEMP_SUFFIX) && attrs.isRegularFile() && attrs.lastModifiedTime().toMillis() < before) {
+					if (Files.deleteIfExists(file)) {
+						job.progress(1, attrs.size());
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Write a chunk of the upload, starting it if it is the first one.
+	 * The ranges written are recorded even if the input fails, and the file is committed by the chunk completing it.
+	 * @param length total length of the uploaded file.
+	 */
+	public Upload write(String id, File target, long length, HttpRange chunk, InputStream body) throws IOException {
+		Upload upload = this.start(id, target, length);
+		try {
+			// the file is open only while writing, uploads waiting for the next chunk hold no file descriptor.
+			try (FileChannel channel = FileChannel.open(upload.temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				long position = chunk.start;
+				long end = chunk.end + 1;
+				while (position < end) {
+					long count = Utils.receiveFile(body, channel, position, Math.min(SLICE_SIZE, end - position), null);
+					upload.received(position, position + count);
+					position += count;
+					if (count == 0) {
+						throw new IOException("Chunk truncated at " + position);
+					}
+				}
+			}
+		}
+		finally {
+			this.release(upload);
+		}
+		return upload;
+	}
+
+	private synchronized Upload start(String id, File target, long length) throws IOException {
+		this.expire();
+		Upload upload = this.uploads.get(key(target, id));
+		if (upload != null) {
+			if (upload.length != length) {
+				throw new IOException("Upload " + id + " has another length");
+			}
+			if (upload.complete) {
+				throw new IOException("Upload " + id + " is complete");
+			}
+		}
+		else {
+			if (this.uploads.size() >= MAX_UPLOADS) {
+				throw new IOException("Too many uploads in progress");
+			}
+			if (target.exists()) {
+				throw new FileAlreadyExistsException(target.getName(), null, "File already exists");
+			}
+			if (length > target.getParentFile().getUsableSpace()) {
+				throw new IOException("Not enough space for the upload");
+			}
+			upload = new Upload(id, target, length);
+			this.uploads.put(key(target, id), upload);
+		}
+		upload.writers += 1;
+		upload.lastActivity = System.currentTimeMillis();
+		return upload;
+	}
+
+	// done writing a chunk, the last writer commits a complete upload.
+	private void release(Upload upload) throws IOException {
+		synchronized (this) {
+			upload.writers -= 1;
+			upload.lastActivity = System.currentTimeMillis();
+			if (upload.writers > 0 || upload.complete || upload.getReceived() < upload.length) {
+				return;
+			}
+			upload.complete = true;
+			this.uploads.remove(key(upload.target, upload.id));
+		}
+		upload.commit();
+	}
+
+	// abandon the uploads without activity.
+	private void expire() {
+		long now = System.currentTimeMillis();
+		Iterator<Upload> iterator = this.uploads.values().iterator();
+		while (iterator.hasNext()) {
+			Upload upload = iterator.next();
+			if (upload.writers == 0 && now - upload.lastActivity > EXPIRY_MILLIS) {
+				iterator.remove();
+				upload.temp.delete();
+				WebShare.log("upload: expired `%s`", upload.target);
+			}
+		}
+	}
+
+	private static String key(File target, String id) {
+		// ids have no colon.
+		return id + ":" + target.getPath();
+	}
+
+	/**
+	 * An upload in progress, or just committed.
+	 */
+	public static class Upload {
+		public final String id;
+		public final File target;
+		public final long length;
+		private final File temp;
+		// received ranges, start to end exclusive, merged when adjacent.
+		private final TreeMap<Long, Long> ranges = new TreeMap<>();
+		private long received = 0;
+		// guarded by the uploads.
+		private int writers = 0;
+		private long lastActivity;
+		private volatile boolean complete = false;
+
+		Upload(String id, File target, long length) {
+			this.id = id;
+			this.target = target;
+			this.length = length;
+			this.temp = new File(target.getParentFile(), "." + target.getName() + "." + id + TEMP_SUFFIX);
+		}
+
+		public synchronized long getReceived() {
+			return this.received;
+		}
+
+		public boolean isComplete() {
+			return this.complete;
+		}
+
+		// the received ranges, as pairs of start and end exclusive.
+		public synchronized List<long[]> getRanges() {
+			List<long[]> result = new ArrayList<>();
+			for (Map.Entry<Long, Long> range : this.ranges.entrySet()) {
+				result.add(new long[] { range.getKey(), range.getValue() });
+			}
+			return result;
+		}
+
+		private synchronized void received(long start, long end) {
+			if (start >= end) {
+				return;
+			}
+			Map.Entry<Long, Long> before = this.ranges.floorEntry(start);
+			if (before != null && before.getValue() >= start) {
+				start = before.getKey();
+				end = Math.max(end, before.getValue());
+				this.remove(before);
+			}
+			Map.Entry<Long, Long> after;
+			while ((after = this.ranges.ceilingEntry(start)) != null && after.getKey() <= end) {
+				end = Math.max(end, after.getValue());
+				this.remove(after);
+			}
+			this.ranges.put(start, end);
+			this.received += end - start;
+		}
+
+		private void remove(Map.Entry<Long, Long> range) {
+			this.ranges.remove(range.getKey());
+			this.received -= range.getValue() - range.getKey();
+		}
+
+		// move the complete file to the target, which must not have been created meanwhile.
+		private void commit() throws IOException {
+			// the chunks were written through other channels, syncing any of them syncs the file.
+			try (FileChannel channel = FileChannel.open(this.temp.toPath(), StandardOpenOption.WRITE)) {
+				channel.force(false);
+			}
+			Utils.moveNew(this.temp, this.target);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package kmz.webshare;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Tar archive of the listed files, in the POSIX ustar format, laid out before anything is sent.
+ * Names longer than the header allows, or not ascii, and files larger than 8 GB, are described by pax extended headers.
+ * Tar has no checksums of the content: the length is known upfront, any range can be written,
+ * and the content of the files is always sent directly with `transferFile`.
+ */
+public class TarArchive implements HttpServer.Content {
+
+	private static final int BLOCK_SIZE = 512;
+	private static final int NAME_SIZE = 100;
+	// largest size written in the 11 octal digits of the header.
+	private static final long MAX_OCTAL_SIZE = 077777777777L;
+	private static final byte[] PAX_NAME = "PaxHeader".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] zeros = new byte[2 * BLOCK_SIZE];
+
+	private final List<ArchiveListing.Item> items;
+	// position of the headers of each entry, followed by the position of the end of the archive.
+	private final long[] offsets;
+	private final int[] headerLengths;
+	private final long lastModified;
+	private final String entityTag;
+	private final long length;
+
+	// lay out the listed files.
+	public TarArchive(ArchiveListing listing) {
+		this.items = listing.getItems();
+		this.offsets = new long[this.items.size() + 1];
+		this.headerLengths = new int[this.items.size()];
+		long offset = 0;
+		for (int index = 0; index < this.items.size(); index += 1) {
+			ArchiveListing.Item item = this.items.get(index);
+			this.offsets[index] = offset;
+			this.headerLengths[index] = header(item).length;
+			offset += this.headerLengths[index] + padded(contentLength(item));
+		}
+		this.offsets[this.items.size()] = offset;
+		// two empty blocks end the archive.
+		this.length = offset + zeros.length;
+		this.lastModified = listing.getLastModified();
+		this.entityTag = "\"" + listing.getFingerprint() + "-tar\"";
+	}
+
+	// length of the archive in bytes.
+	public long getLength() {
+		return this.length;
+	}
+
+	// most recent modification of the archived files.
+	public long getLastModified() {
+		return this.lastModified;
+	}
+
+	// strong entity tag, the same files result in the same bytes.
+	public String getEntityTag() {
+		return this.entityTag;
+	}
+
+	// write `count` bytes of the archive starting at `position`.
+	@Override
+	public void transfer(long position, long count, OutputStream out) throws IOException {
+		long end = position + count;
+		for (int index = this.find(position); index < this.items.size() && position < end; index += 1) {
+			ArchiveListing.Item item = this.items.get(index);
+			long contentStart = this.offsets[index] + this.headerLengths[index];
+			if (position < contentStart) {
+				position = Utils.writePart(header(item), this.offsets[index], position, end, out);
+			}
+
+			long contentEnd = contentStart + contentLength(item);
+			if (position < end && position < contentEnd) {
+				long length = Math.min(end, contentEnd) - position;
+				writeContent(item, position - contentStart, length, out);
+				position += length;
+			}
+			// the content is padded to a whole block.
+			position = writeZeros(contentEnd, this.offsets[index + 1], position, end, out);
+		}
+		writeZeros(this.offsets[this.items.size()], this.length, position, end, out);
+	}
+
+	// index of the entry containing the position.
+	private int find(long position) {
+		int low = 0;
+		int high = this.items.size();
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (this.offsets[mid] <= position) {
+				low = mid;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	// the length was announced in the header: a file truncated meanwhile is padded with zeros.
+	private static void writeContent(ArchiveListing.Item item, long position, long count, OutputStream out) throws IOException {
+		try (FileChannel in = FileChannel.open(item.path)) {
+			long available = Math.max(0, Math.min(count, in.size() - position));
+			if (available > 0) {
+				Utils.transferFile(in, position, available, out);
+			}
+			writeZeros(position + available, position + count, position + available, position + count, out);
+		}
+	}
+
+	// write the zeros between `start` and `stop` which are between `position` and `end`.
+	private static long writeZeros(long start, long stop, long position, long end, OutputStream out) throws IOException {
+		position = Math.max(position, start);
+		stop = Math.min(stop, end);
+		while (position < stop) {
+			int count = (int) Math.min(zeros.length, stop - position);
+			out.write(zeros, 0, count);
+			position += count;
+		}
+		return position;
+	}
+
+	private static long contentLength(ArchiveListing.Item item) {
+		return item.path == null ? 0 : item.file.length;
+	}
+
+	private static long padded(long length) {
+		return (length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+	}
+
+	// header of the entry, preceded by a pax extended header if needed.
+	private static byte[] header(ArchiveListing.Item item) {
+		boolean directory = item.path == null;
+		String name = directory ? item.name + '/' : item.name;
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		long length = contentLength(item);
+		long mtime = Math.max(0, item.file.lastModified / 1000);
+
+		StringBuilder extended = new StringBuilder();
+		if (nameBytes.length > NAME_SIZE || nameBytes.length != name.length()) {
+			extended.append(paxRecord("path", name));
+		}
+		if (length > MAX_OCTAL_SIZE) {
+			extended.append(paxRecord("size", Long.toString(length)));
+		}
+
+		byte[] header = ustarHeader(nameBytes, directory ? '5' : '0', directory ? 0755 : 0644, length > MAX_OCTAL_SIZE ? 0 : length, mtime);
+		if (extended.length() == 0) {
+			return header;
+		}
+
+		byte[] data = extended.toString().getBytes(StandardCharsets.UTF_8);
+		int dataLength = (int) padded(data.length);
+		byte[] result = new byte[BLOCK_SIZE + dataLength + BLOCK_SIZE];
+		System.arraycopy(ustarHeader(PAX_NAME, 'x', 0644, data.length, mtime), 0, result, 0, BLOCK_SIZE);
+		System.arraycopy(data, 0, result, BLOCK_SIZE, data.length);
+		System.arraycopy(header, 0, result, BLOCK_SIZE + dataLength, BLOCK_SIZE);
+		return result;
+	}
+
+	// pax record "<length> <key>=<value>\n", the length counts the whole record in bytes, including its own digits.
+	private static String paxRecord(String key, String value) {
+		int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+		int total = length + Integer.toString(length).length();
+		if (Integer.toString(total).length() > Integer.toString(length).length()) {
+			total += 1;
+		}
+		return total + " " + key + "=" + value + "\n";
+	}
+
+	private static byte[] ustarHeader(byte[] name, char type, int mode, long size, long mtime) {
+		byte[] header = new byte[BLOCK_SIZE];
+		// a name too long is replaced by the pax path.
+		System.arraycopy(name, 0, header, 0, Math.min(name.length, NAME_SIZE));
+		octal(header, 100, 8, mode);
+		octal(header, 108, 8, 0);
+		octal(header, 116, 8, 0);
+		octal(header, 124, 12, size);
+		octal(header, 136, 12, mtime);
+		header[156] = (byte) type;
+		System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+		// the checksum is computed with its own field filled with spaces.
+		int checksum = 0;
+		for (int i = 0; i < BLOCK_SIZE; i += 1) {
+			checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+		}
+		octal(header, 148, 7, checksum);
+		header[155] = ' ';
+		return header;
+	}
+
+	// zero padded octal number, terminated by a null.
+	private static void octal(byte[] header, int offset, int length, long value) {
+		String digits = Long.toOctalString(value);
+		int start = offset + length - 1 - digits.length();
+		for (int i = offset; i < start; i += 1) {
+			header[i] = '0';
+		}
+		for (int i = 0; i < digits.length(); i += 1) {
+			header[start + i] = (byte) digits.charAt(i);
+		}
+		header[offset + length - 1] = 0;
+	}
+}
@@ -0,0 +1,284 @@
+package kmz.webshare;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recursive directory walker scanning subtrees in parallel on a fork-join pool.
+ * The entries are passed to the processor by the calling thread, in the same depth-first order on every walk:
+ * the files and directories of a directory sorted by name, each directory followed by its content.
+ * Directories are scanned ahead of the processor only while the scanned, but not yet processed entries fit in a bounded buffer.
+ */
+public class TreeWalker {
+
+	// scanned entries waiting to be processed, directories are not scanned ahead above this limit.
+	private static final long MAX_BUFFERED = 64 << 10;
+
+	// scanning is mostly waiting for the file system, use more threads than cores.
+	private static final ForkJoinPool pool = new ForkJoinPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+	private final int maxDepth;
+	private final long maxEntries;
+	private final long maxMillis;
+
+	/**
+	 * @param maxDepth directories deeper than this are listed, but not entered.
+	 * @param maxEntries stop the walk after this many entries.
+	 * @param maxMillis stop the walk after this many milliseconds.
+	 */
+	public TreeWalker(int maxDepth, long maxEntries, long maxMillis) {
+		this.maxDepth = maxDepth;
+		this.maxEntries = maxEntries;
+		this.maxMillis = maxMillis;
+	}
+
+	/**
+	 * Walk the content of the directory, paths passed to the processor are relative to the given path.
+	 * @return null if the whole tree was processed, otherwise the limit that truncated the walk.
+	 */
+	public String walk(String path, Path directory, Utils.FileProcessor processor) throws IOException {
+		Walk walk = new Walk();
+		try {
+			return walk.run(path, directory, processor);
+		}
+		finally {
+			// do not scan ahead for a walk that is over.
+			walk.stopped = true;
+		}
+	}
+
+	// an entry of a directory with its path, while scanning.
+	private static class Scanned {
+		static final Comparator<Scanned> BY_NAME = new Comparator<Scanned>() {
+			@Override
+			public int compare(Scanned lhs, Scanned rhs) {
+				return lhs.entry.name.compareToIgnoreCase(rhs.entry.name);
+			}
+		};
+
+		final Path path;
+		final FileEntry entry;
+		final Object fileKey;
+
+		Scanned(Path path, BasicFileAttributes attributes) {
+			this.path = path;
+			this.entry = new FileEntry(path.getFileName().toString(), attributes);
+			this.fileKey = attributes.fileKey();
+		}
+	}
+
+	private class Walk {
+		private final AtomicLong buffered = new AtomicLong();
+		private volatile boolean stopped = false;
+		private boolean truncatedDepth = false;
+
+		// a directory to be scanned, the content is processed in order after the scan completes.
+		private class Directory extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+
+			// tasks are never serialized.
+			final transient Directory parent;
+			final transient Path path;
+			final transient int depth;
+			final transient AtomicBoolean started = new AtomicBoolean();
+			final transient Object fileKey;
+			transient FileEntry[] entries;
+			transient Path[] paths;
+			transient Directory[] children;
+			transient IOException error;
+
+			Directory(Directory parent, Path path, Object fileKey, int depth) {
+				this.parent = parent;
+				this.path = path;
+				this.fileKey = fileKey;
+				this.depth = depth;
+			}
+
+			// start scanning in the pool, unless already started.
+			void prefetch() {
+				if (!Walk.this.stopped && Walk.this.buffered.get() < MAX_BUFFERED && this.started.compareAndSet(false, true)) {
+					if (getPool() == pool) {
+						this.fork();
+					}
+					else {
+						pool.execute(this);
+					}
+				}
+			}
+
+			// wait for the scan, scanning in the calling thread if it was not yet started.
+			void await() {
+				if (this.started.compareAndSet(false, true)) {
+					this.invoke();
+				}
+				else {
+					this.join();
+				}
+			}
+
+			@Override
+			protected void compute() {
+				try {
+					this.scan();
+				}
+				catch (IOException e) {
+					this.error = e;
+					return;
+				}
+				Walk.this.buffered.addAndGet(this.entries.length);
+
+				// scan the subdirectories ahead, in the order they will be processed.
+				for (Directory child : this.children) {
+					if (child != null) {
+						child.prefetch();
+					}
+				}
+			}
+
+			private void scan() throws IOException {
+				for (Directory ancestor = this.parent; ancestor != null; ancestor = ancestor.parent) {
+					if (this.fileKey != null && this.fileKey.equals(ancestor.fileKey)) {
+						throw new FileSystemLoopException(this.path.toString());
+					}
+				}
+
+				List<Scanned> scanned = new ArrayList<>();
+				try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.path)) {
+					for (Path path : stream) {
+						BasicFileAttributes attributes;
+						try {
+							attributes = Files.readAttributes(path, BasicFileAttributes.class);
+						}
+						catch (IOException e) {
+							// ex: broken symbolic link
+							attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						}
+						scanned.add(new Scanned(path, attributes));
+					}
+				}
+				catch (DirectoryIteratorException e) {
+					throw e.getCause();
+				}
+				Collections.sort(scanned, Scanned.BY_NAME);
+
+				this.entries = new FileEntry[scanned.size()];
+				this.paths = new Path[scanned.size()];
+				this.children = new Directory[scanned.size()];
+				for (int i = 0; i < this.entries.length; i += 1) {
+					Scanned item = scanned.get(i);
+					this.entries[i] = item.entry;
+					this.paths[i] = item.path;
+					if (item.entry.directory && this.depth < TreeWalker.this.maxDepth) {
+						this.children[i] = new Directory(this, item.path, item.fileKey, this.depth + 1);
+					}
+				}
+			}
+		}
+
+		// a directory being processed, and the position of the next entry.
+		private class Frame {
+			final Directory directory;
+			final String path;
+			int position = 0;
+
+			Frame(Directory directory, String path) {
+				this.directory = directory;
+				this.path = path;
+			}
+		}
+
+		String run(String path, Path root, Utils.FileProcessor processor) throws IOException {
+			long now = System.currentTimeMillis();
+			// no time limit if the deadline would overflow.
+			long deadline = TreeWalker.this.maxMillis < Long.MAX_VALUE - now ? now + TreeWalker.this.maxMillis : Long.MAX_VALUE;
+			long processed = 0;
+
+			Object fileKey = null;
+			try {
+				fileKey = Files.readAttributes(root, BasicFileAttributes.class).fileKey();
+			}
+			catch (IOException ignore) {
+				// reported when scanning.
+			}
+
+			Deque<Frame> stack = new ArrayDeque<>();
+			Directory directory = new Directory(null, root, fileKey, 0);
+			directory.await();
+			if (directory.error != null) {
+				processor.onError(path, root, directory.error);
+				return null;
+			}
+			stack.push(new Frame(directory, path));
+
+			while (!stack.isEmpty()) {
+				Frame frame = stack.peek();
+				FileEntry[] entries = frame.directory.entries;
+				if (frame.position >= entries.length) {
+					stack.pop();
+					continue;
+				}
+
+				if (processed >= TreeWalker.this.maxEntries) {
+					return String.format("listing truncated after %d entries", processed);
+				}
+				if (System.currentTimeMillis() > deadline) {
+					return String.format("listing truncated after %d seconds", TreeWalker.this.maxMillis / 1000);
+				}
+
+				int index = frame.position;
+				frame.position += 1;
+				this.buffered.decrementAndGet();
+				processed += 1;
+
+				// processed entries are released, only the directories on the stack and the ones scanned ahead are kept.
+				FileEntry entry = entries[index];
+				Path entryLocal = frame.directory.paths[index];
+				Directory child = frame.directory.children[index];
+				entries[index] = null;
+				frame.directory.paths[index] = null;
+				frame.directory.children[index] = null;
+
+				String entryPath = frame.path + '/' + entry.name;
+				if (!entry.directory) {
+					processor.onFile(entryPath, entryLocal, entry);
+					continue;
+				}
+
+				if (!processor.onDirectory(entryPath, entry)) {
+					continue;
+				}
+				if (child == null) {
+					this.truncatedDepth = true;
+					continue;
+				}
+				child.await();
+				if (child.error != null) {
+					processor.onError(entryPath, child.path, child.error);
+					continue;
+				}
+				stack.push(new Frame(child, entryPath));
+			}
+
+			if (this.truncatedDepth) {
+				return String.format("directories deeper than %d levels are not listed", TreeWalker.this.maxDepth);
+			}
+			return null;
+		}
+	}
+}
@@ -2,19 +2,32 @@ package kmz.webshare;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 public class Utils {
 
@@ -60,13 +73,215 @@ public class Utils {
 		return null;
 	}
 
-	public static void copyStream(OutputStream out, InputStream in) throws IOException {
+	public static long copyStream(OutputStream out, InputStream in) throws IOException {
 		int len;
+		long total = 0;
 		byte[] buff = new byte[1024];
 		while ((len = in.read(buff)) > 0) {
 			out.write(buff, 0, len);
+			total += len;
 			Thread.yield();
 		}
+		return total;
+	}
+
+	private static final int TRANSFER_BUFFER_SIZE = 64 << 10;
+
+	// output stream which can send the content of a file directly to its destination.
+	public interface FileTransferTarget {
+
+		long transferFrom(FileChannel in, long position, long count) throws IOException;
+	}
+
+	/**
+	 * Transfer `count` bytes of the file starting at `position` to the output.
+	 * If the output is a file transfer target, or can be used as a channel, the bytes are handed to `FileChannel.transferTo`,
+	 * which lets the os skip copying the content through the java heap.
+	 * Otherwise the content is copied using a large buffer.
+	 * @return the number of bytes transferred, which is always `count`.
+	 */
+	public static long transferFile(FileChannel in, long position, long count, OutputStream out) throws IOException {
+		long end = position + count;
+		if (out instanceof FileTransferTarget) {
+			return ((FileTransferTarget) out).transferFrom(in, position, count);
+		}
+		if (out instanceof WritableByteChannel) {
+			WritableByteChannel channel = (WritableByteChannel) out;
+			while (position < end) {
+				long n = in.transferTo(position, end - position, channel);
+				if (n <= 0 && position >= in.size()) {
+					throw new EOFException("File truncated while sending");
+				}
+				position += n;
+			}
+			return count;
+		}
+
+		// fallback: the output stream can not be used as a channel.
+		ByteBuffer buff = ByteBuffer.allocate((int) Math.min(TRANSFER_BUFFER_SIZE, Math.max(count, 1)));
+		while (position < end) {
+			buff.clear();
+			if (buff.remaining() > end - position) {
+				buff.limit((int) (end - position));
+			}
+			int n = in.read(buff, position);
+			if (n < 0) {
+				throw new EOFException("File truncated while sending");
+			}
+			out.write(buff.array(), 0, n);
+			position += n;
+		}
+		return count;
+	}
+
+	public static long transferFile(File file, long position, long count, OutputStream out) throws IOException {
+		FileChannel in = null;
+		try {
+			in = FileChannel.open(file.toPath());
+			return transferFile(in, position, count, out);
+		}
+		finally {
+			Utils.close(in);
+		}
+	}
+
+	private static final int DIRECT_BUFFER_SIZE = 1 << 20;
+	private static final int MAX_DIRECT_BUFFERS = 16;
+
+	// large direct buffers released by the finished requests, reused by the next ones.
+	private static final ArrayDeque<ByteBuffer> directBuffers = new ArrayDeque<>();
+
+	// get a cleared direct buffer of 1 MB, which should be released after use.
+	public static ByteBuffer acquireBuffer() {
+		synchronized (directBuffers) {
+			if (!directBuffers.isEmpty()) {
+				return directBuffers.pop();
+			}
+		}
+		return ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+	}
+
+	public static void releaseBuffer(ByteBuffer buffer) {
+		synchronized (directBuffers) {
+			if (directBuffers.size() < MAX_DIRECT_BUFFERS) {
+				buffer.clear();
+				directBuffers.push(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Write the whole input to the file, at the position of the channel.
+	 * The content of a multipart request is written directly from the buffer of the parser.
+	 * @param digest updated with the content as it is written, if not null.
+	 * @return the number of bytes written.
+	 */
+	public static long receiveFile(InputStream in, FileChannel out, MessageDigest digest) throws IOException {
+		if (in instanceof MultipartParser.Body) {
+			return ((MultipartParser.Body) in).writeTo(out, digest);
+		}
+		long position = out.position();
+		long total = receiveFile(in, out, position, Long.MAX_VALUE, digest);
+		out.position(position + total);
+		return total;
+	}
+
+	/**
+	 * Write the input to the file starting at `position`, until the end of the input or `count` bytes.
+	 * The input is read into a large direct buffer, request bodies of the nio server directly from the socket.
+	 * @param digest updated with the content as it is written, if not null.
+	 * @return the number of bytes written, less than `count` if the input ended before.
+	 */
+	public static long receiveFile(InputStream in, FileChannel out, long position, long count, MessageDigest digest) throws IOException {
+		ReadableByteChannel channel = in instanceof ReadableByteChannel ? (ReadableByteChannel) in : Channels.newChannel(in);
+		ByteBuffer buffer = acquireBuffer();
+		try {
+			long total = 0;
+			boolean eof = false;
+			while (!eof && total < count) {
+				buffer.clear();
+				if (buffer.remaining() > count - total) {
+					buffer.limit((int) (count - total));
+				}
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0) {
+						eof = true;
+						break;
+					}
+				}
+				buffer.flip();
+				if (digest != null) {
+					digest.update(buffer.duplicate());
+				}
+				while (buffer.hasRemaining()) {
+					total += out.write(buffer, position + total);
+				}
+			}
+			return total;
+		}
+		finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Move the complete file to the target, the target must not exist; the file is deleted if the target exists.
+	 * The file is linked first, which never replaces an existing file. If links are not supported,
+	 * it is copied to a new file instead, which is visible while being copied.
+	 */
+	public static void moveNew(File file, File target) throws IOException {
+		try {
+			Files.createLink(target.toPath(), file.toPath());
+			Files.delete(file.toPath());
+			return;
+		}
+		catch (FileAlreadyExistsException e) {
+			file.delete();
+			throw new FileAlreadyExistsException(target.getName(), null, "File already exists");
+		}
+		catch (UnsupportedOperationException | IOException e) {
+			// copied below.
+		}
+
+		// creating the copy fails if the target was created meanwhile, a rename would replace it.
+		FileChannel out;
+		try {
+			out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		}
+		catch (FileAlreadyExistsException e) {
+			file.delete();
+			throw new FileAlreadyExistsException(target.getName(), null, "File already exists");
+		}
+		try (FileChannel in = FileChannel.open(file.toPath())) {
+			long size = in.size();
+			long position = 0;
+			while (position < size) {
+				position += in.transferTo(position, size - position, out);
+			}
+			out.force(false);
+			out.close();
+		}
+		catch (IOException e) {
+			close(out);
+			target.delete();
+			throw e;
+		}
+		Files.delete(file.toPath());
+	}
+
+	/**
+	 * Write the part of the record, which starts at `start` in the output, between `position` and `end`.
+	 * @return the position after the written bytes, unchanged if the record ends before `position` or starts after `end`.
+	 */
+	public static long writePart(byte[] record, long start, long position, long end, OutputStream out) throws IOException {
+		long recordEnd = start + record.length;
+		if (position >= recordEnd || position >= end) {
+			return position;
+		}
+		int from = (int) (position - start);
+		int to = (int) (Math.min(recordEnd, end) - start);
+		out.write(record, from, to - from);
+		return start + to;
 	}
 
 	public static void close(Closeable closeable) {
@@ -80,10 +295,28 @@ public class Utils {
 	}
 
 
-	private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy.MM.dd");
+	// DateTimeFormatter is immutable, listings are rendered concurrently.
+	private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyy.MM.dd").withZone(ZoneId.systemDefault());
 
 	public static String formatDate(long value) {
-		return dateFormat.format(new Date(value));
+		return dateFormat.format(Instant.ofEpochMilli(value));
+	}
+
+	private static final DateTimeFormatter httpDateFormat = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+	// format a date to be used in http headers, ex: Last-Modified
+	public static String formatHttpDate(long value) {
+		return httpDateFormat.format(Instant.ofEpochMilli(value));
+	}
+
+	// parse a date from a http header, returns -1 if the date can not be parsed.
+	public static long parseHttpDate(String value) {
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		}
+		catch (Exception e) {
+			return -1;
+		}
 	}
 
 	public static String formatTime(long millis) {
@@ -173,6 +406,19 @@ public class Utils {
 		return result;
 	}
 
+	// encode each segment of a relative path, keeping the separators.
+	public static String encodeUriPath(String path) {
+		String[] segments = path.split("/", -1);
+		StringBuilder result = new StringBuilder(path.length());
+		for (int i = 0; i < segments.length; i += 1) {
+			if (i > 0) {
+				result.append('/');
+			}
+			result.append(encodeUri(segments[i]));
+		}
+		return result.toString();
+	}
+
 	public static String decodeUri(String s) {
 		String result;
 
@@ -213,65 +459,37 @@ public class Utils {
 		return sb.toString();
 	}
 
-	public static void addToArchive(ZipOutputStream out, String prefix, File file) {
-		if (Utils.isNullOrEmpty(prefix)) {
-			prefix = file.getName();
-		}
-		else {
-			prefix += '/' + file.getName();
-		}
-
-		FileInputStream src = null;
-		try {
-			if (file.isDirectory()) {
-				File[] files = file.listFiles();
-				if (files == null) {
-					throw new IOException("Can not list content of: " + file.getPath());
-				}
-				for (File item : files) {
-					addToArchive(out, prefix, item);
-				}
-			}
-			else {
-				src = new FileInputStream(file);
-				out.putNextEntry(new ZipEntry(prefix));
-				Utils.copyStream(out, src);
-				out.closeEntry();
-				out.flush();
-			}
-		}
-		catch (Exception ignore) {
-		}
-		finally {
-			Utils.close(src);
-		}
-	}
-
 	public interface FileProcessor {
 
-		void onFile(String path, File file);
+		void onFile(String path, Path local, FileEntry file) throws IOException;
 
-		boolean onDirectory(String path, File file);
+		boolean onDirectory(String path, FileEntry file) throws IOException;
 
-		void onError(String path, File file, Exception error);
+		void onError(String path, Path file, IOException error) throws IOException;
 	}
 
-	public static void processFilesRecursive(String path, File file, FileProcessor processor) {
-		if (file.isDirectory()) {
-			File[] files = file.listFiles();
-			if (files == null) {
-				processor.onError(path, file, new IOException("Can not list content of: " + file.getPath()));
-				return;
-			}
-			if (!processor.onDirectory(path, file)) {
-				return;
-			}
-			for (File item : files) {
-				processFilesRecursive(path + '/' + item.getName(), item, processor);
-			}
+	// counts the bytes written through it, ex: the compressed length of a response.
+	public static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		public long getCount() {
+			return this.count;
 		}
-		else {
-			processor.onFile(path, file);
+
+		@Override
+		public void write(int b) throws IOException {
+			this.out.write(b);
+			this.count += 1;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			this.count += len;
 		}
 	}
 }
@@ -1,66 +1,110 @@
 package kmz.webshare;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class WebShare extends HttpServer {
 
 	private static final String DOWNLOAD = "download";
 	private static final String RECURSIVE = "recursive";
+	private static final String STORE = "store";
+	private static final String OFFSET = "offset";
+	private static final String LIMIT = "limit";
+	private static final String SORT = "sort";
+
+	private static final String SEARCH = "search";
+	private static final String LISTING = "listing";
+	private static final String FORMAT = "format";
+	private static final String FORMAT_HTML = "html";
+	private static final String FORMAT_JSON = "json";
+	private static final String FORMAT_ZIP = "zip";
+	private static final String FORMAT_TAR = "tar";
+	private static final String FORMAT_TAR_GZ = "tar.gz";
+
+	private static final String SORT_NAME = "name";
+	private static final String SORT_SIZE = "size";
+	private static final String SORT_DATE = "date";
+
+	// entries of a directory listed on a page, unless a limit is requested.
+	private static final int PAGE_SIZE = 1000;
 
 	private static final String POST_CMD_MK_DIR = "mkdir";
 	private static final String POST_CMD_DELETE = "delete";
 
 	private static final String POST_CMD_FILENAME = "filename";
 	private static final String POST_CMD_FILEDATA = "filedata";
+	private static final String UPLOAD = "upload";
+	// the chunk of a resumable upload was written.
+	private static final String UPLOAD_STATUS = "upload.status";
+	private static final String UPLOAD_HASH = "upload.sha256";
+	private static final String JOB = "job";
+	private static final String JOB_STATUS = "job.status";
+	private static final String PREBUILD = "prebuild";
+
+	private static final String MIME_CACHE_CONTROL = "cache.";
+	private static final String MIME_COMPRESS = "gzip.";
+	private static final String MIME_STORE = "store.";
+
+	private static final String ROUTE_FILE = "file";
+	private static final String ROUTE_LISTING = "listing";
+	private static final String ROUTE_ARCHIVE = "archive";
+	private static final String ROUTE_UPLOAD = "upload";
+	private static final String ROUTE_ERROR = "error";
+	private static final String ROUTE_SEARCH = "search";
+	private static final String ROUTE_JOB = "job";
+
+	private static final String EXECUTOR_VIRTUAL = "virtual";
+	private static final String ENGINE_JDK = "jdk";
+	private static final String ENGINE_NIO = "nio";
 
 	private static final String FILE_MIME_MAP = "mime.map";
 	private static final String FILE_TEMPLATE = "FileList.html";
 
-	private static File logFile = null;
+	// messages waiting to be written, when full new messages are dropped.
+	private static final int LOG_CAPACITY = 64 << 10;
 
-	public static void log(Throwable error, String message, Object... args) {
-		if (message != null) {
-			System.out.printf(message, args).println();
-		}
-		if (error != null) {
-			error.printStackTrace(System.out);
-		}
+	// limits of recursive listings.
+	private static final int RECURSIVE_MAX_DEPTH = 32;
+	private static final long RECURSIVE_MAX_ENTRIES = 1000000;
+	private static final long RECURSIVE_MAX_MILLIS = 60000;
 
-		PrintWriter log = null;
-		if (logFile != null) {
-			try {
-				log = new PrintWriter(new FileOutputStream(logFile, true));
-				if (message != null) {
-					log.printf(message, args).println();
-				}
-				if (error != null) {
-					error.printStackTrace(log);
-				}
-			}
-			catch (IOException e) {
-				e.printStackTrace();
-			}
-			finally {
-				Utils.close(log);
-			}
-		}
+	// approximate memory used by cached directory listings.
+	private static final long DIRECTORY_CACHE_SIZE = 32 << 20;
+
+	// background jobs running at the same time, by default.
+	private static final int JOB_THREADS = 4;
+	// time a request waits for the job it started before rendering the listing.
+	private static final long JOB_WAIT_MILLIS = 500;
+
+	private static final AsyncLog logger = AsyncLog.start(LOG_CAPACITY, 200);
+
+	public static void log(Throwable error, String message, Object... args) {
+		logger.log(error, message, args);
 	}
 
 	public static void log(String message, Object... args) {
@@ -76,6 +120,15 @@ public class WebShare extends HttpServer {
 		boolean readOnly = true;
 
 		int threads = 256;
+		boolean virtualThreads = false;
+		String engine = ENGINE_JDK;
+		String metricsPath = null;
+		long archiveCacheSize = 1024L << 20;
+		boolean deduplicate = false;
+		boolean search = false;
+		int jobThreads = JOB_THREADS;
+		int proxyPoolSize = 64;
+		long proxyTimeout = 30;
 
 		int arg = 0;
 		for (; arg < args.length; arg += 1) {
@@ -101,17 +154,68 @@ public class WebShare extends HttpServer {
 			}
 			else if ("-log".equals(args[arg])) {
 				if ((arg += 1) < args.length) {
-					logFile = new File(args[arg]);
+					logger.setFile(new File(args[arg]));
+				}
+			}
+			else if ("-logflush".equals(args[arg])) {
+				if ((arg += 1) < args.length) {
+					logger.setFlushInterval(Long.parseLong(args[arg]));
 				}
 			}
 			else if ("-n".equals(args[arg])) {
 				if ((arg += 1) < args.length) {
-					threads = Integer.parseInt(args[arg]);
+					if (EXECUTOR_VIRTUAL.equals(args[arg])) {
+						virtualThreads = true;
+					}
+					else {
+						threads = Integer.parseInt(args[arg]);
+					}
+				}
+			}
+			else if ("-metrics".equals(args[arg])) {
+				if ((arg += 1) < args.length) {
+					metricsPath = args[arg];
+				}
+			}
+			else if ("-engine".equals(args[arg])) {
+				if ((arg += 1) < args.length) {
+					engine = args[arg];
+				}
+			}
+			else if ("-zipmemory".equals(args[arg])) {
+				if ((arg += 1) < args.length) {
+					ZipWriter.setMaxMemory(Long.parseLong(args[arg]) << 20);
+				}
+			}
+			else if ("-archivecache".equals(args[arg])) {
+				if ((arg += 1) < args.length) {
+					archiveCacheSize = Long.parseLong(args[arg]) << 20;
 				}
 			}
 			else if ("-write".equals(args[arg])) {
 				readOnly = false;
 			}
+			else if ("-proxypool".equals(args[arg])) {
+				if ((arg += 1) < args.length) {
+					proxyPoolSize = Integer.parseInt(args[arg]);
+				}
+			}
+			else if ("-proxytimeout".equals(args[arg])) {
+				if ((arg += 1) < args.length) {
+					proxyTimeout = Long.parseLong(args[arg]);
+				}
+			}
+			else if ("-jobs".equals(args[arg])) {
+				if ((arg += 1) < args.length) {
+					jobThreads = Integer.parseInt(args[arg]);
+				}
+			}
+			else if ("-dedup".equals(args[arg])) {
+				deduplicate = true;
+			}
+			else if ("-search".equals(args[arg])) {
+				search = true;
+			}
 			else if (args[arg].charAt(0) != '-') {
 				if (arg == args.length - 1) {
 					break;
@@ -141,10 +245,46 @@ public class WebShare extends HttpServer {
 		}
 		final File root = new File(directory).getCanonicalFile();
 
-		com.sun.net.httpserver.HttpServer server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(port), 0);
+		com.sun.net.httpserver.HttpServer server;
+		if (ENGINE_NIO.equals(engine)) {
+			server = NioServer.create(new InetSocketAddress(port), 0);
+		}
+		else if (ENGINE_JDK.equals(engine)) {
+			server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(port), 0);
+		}
+		else {
+			log("invalid engine: `%s`", engine);
+			return;
+		}
 		WebShare webShare = new WebShare(root, auth, readOnly);
+		webShare.directoryCache.start();
+		webShare.setMetricsPath(metricsPath);
+		webShare.contentIndex.setDeduplicate(deduplicate);
+		webShare.jobs.setThreads(jobThreads);
+		if (archiveCacheSize > 0) {
+			webShare.setArchiveCache(new ArchiveCache(archiveCacheSize, webShare.jobs));
+		}
+		if (!readOnly) {
+			// uploads are not resumed after a restart, their temporary files are deleted.
+			final long started = System.currentTimeMillis();
+			webShare.jobs.submit("cleanup", root.getPath(), new JobScheduler.Task() {
+				@Override
+				public void run(JobScheduler.Job job) throws IOException {
+					ResumableUploads.deleteOrphans(root.toPath(), started, job);
+				}
+			});
+		}
+		if (search) {
+			// index the names of the shared files in the background.
+			FileIndex fileIndex = new FileIndex(root.toPath());
+			fileIndex.start();
+			webShare.fileIndex = fileIndex;
+		}
+		if (server instanceof NioServer) {
+			((NioServer) server).setMetrics(webShare.metrics);
+		}
 		if (repoUrl != null) {
-			server.createContext("/", new HttpFileProxy(webShare, repoUrl));
+			server.createContext("/", new HttpFileProxy(webShare, repoUrl, proxyPoolSize, TimeUnit.SECONDS.toMillis(proxyTimeout)));
 			if (!webShare.mimeMap.containsKey("*")) {
 				webShare.mimeMap.put("*", CONTENT_TYPE_TEXT_HTML_CHARSET);
 			}
@@ -155,11 +295,37 @@ public class WebShare extends HttpServer {
 				webShare.mimeMap.put("*", CONTENT_TYPE_TEXT_PLAIN_CHARSET);
 			}
 		}
-		if (threads > 0) {
-			server.setExecutor(Executors.newFixedThreadPool(threads));
+		ExecutorService executor = null;
+		String executorName = "the dispatcher thread";
+		if (virtualThreads) {
+			executor = newVirtualThreadExecutor();
+			if (executor != null) {
+				executorName = "virtual threads";
+			}
+			else {
+				log("virtual threads are not supported by this java version, falling back to a thread pool");
+			}
+		}
+		if (executor == null && threads > 0) {
+			executor = Executors.newFixedThreadPool(threads);
+			executorName = String.format("%d threads", threads);
+		}
+		if (executor != null) {
+			server.setExecutor(executor);
+			webShare.metrics.setExecutor(executor);
 		}
 		server.start();
-		log("Server started: %s:%s using %d threads in folder: `%s`", host, server.getAddress().getPort(), threads, root.getAbsolutePath());
+		log("Server started: %s:%s using %s engine and %s in folder: `%s`", host, server.getAddress().getPort(), engine, executorName, root.getAbsolutePath());
+	}
+
+	// executor starting a new virtual thread for each request, null if not supported (requires java 21).
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (Exception e) {
+			return null;
+		}
 	}
 
 	private final File root;
@@ -168,6 +334,11 @@ public class WebShare extends HttpServer {
 	protected final Properties mimeMap;
 	protected final Properties headerMap;
 	private final HtmlTemplate template;
+	private final DirectoryCache directoryCache = new DirectoryCache(DIRECTORY_CACHE_SIZE);
+	private FileIndex fileIndex = null;
+	private final TreeWalker treeWalker = new TreeWalker(RECURSIVE_MAX_DEPTH, RECURSIVE_MAX_ENTRIES, RECURSIVE_MAX_MILLIS);
+	private final ResumableUploads uploads = new ResumableUploads();
+	private final JobScheduler jobs = new JobScheduler(JOB_THREADS);
 	private Set<String> authenticatedUsers = new HashSet<>();
 
 	public WebShare(File root, String auth, boolean readOnly) throws ParseException {
@@ -176,16 +347,17 @@ public class WebShare extends HttpServer {
 		this.readOnly = readOnly;
 		this.mimeMap = new Properties();
 		this.headerMap = new Properties();
-		this.template = new HtmlTemplate();
 
-		// load html template
+		// load html template, it is parsed once and shared by all requests.
+		HtmlTemplate template;
 		try {
 			// try to load first from the
-			template.parse(new FileInputStream(FILE_TEMPLATE));
+			template = HtmlTemplate.parse(new FileInputStream(FILE_TEMPLATE));
 		}
 		catch (IOException e) {
-			template.parse(getClass().getResourceAsStream("/" + FILE_TEMPLATE));
+			template = HtmlTemplate.parse(getClass().getResourceAsStream("/" + FILE_TEMPLATE));
 		}
+		this.template = template;
 
 		// customize mime types
 		try {
@@ -218,6 +390,41 @@ public class WebShare extends HttpServer {
 		return mimeType;
 	}
 
+	// lookup a property of a content type by: `prefix.type/subtype`, `prefix.type/*`, `prefix.*`
+	private String getMimeProperty(String prefix, String contentType) {
+		String mimeType = contentType;
+		int paramPos = mimeType.indexOf(';');
+		if (paramPos > 0) {
+			mimeType = mimeType.substring(0, paramPos).trim();
+		}
+		String result = mimeMap.getProperty(prefix + mimeType, null);
+		if (result == null) {
+			int subTypePos = mimeType.indexOf('/');
+			if (subTypePos > 0) {
+				result = mimeMap.getProperty(prefix + mimeType.substring(0, subTypePos) + "/*", null);
+			}
+		}
+		if (result == null) {
+			result = mimeMap.getProperty(prefix + "*", null);
+		}
+		return result;
+	}
+
+	@Override
+	protected String getCacheControl(String contentType) {
+		return getMimeProperty(MIME_CACHE_CONTROL, contentType);
+	}
+
+	@Override
+	protected boolean isCompressible(String contentType) {
+		return Boolean.parseBoolean(getMimeProperty(MIME_COMPRESS, contentType));
+	}
+
+	@Override
+	protected boolean isStored(String contentType) {
+		return Boolean.parseBoolean(getMimeProperty(MIME_STORE, contentType));
+	}
+
 	@Override
 	protected String remapHeader(String key, String value) {
 		if (this.headerMap.containsKey(key)) {
@@ -233,7 +440,22 @@ public class WebShare extends HttpServer {
 		}
 		// TODO: browser sends the path decoded
 		//return new File(this.root, Utils.decodeUri(path));
-		return new File(this.root, path);
+		File file = new File(this.root, path);
+		// paths escaping the shared directory, ex: `/../file`, are not served.
+		if (!this.isShared(file)) {
+			return null;
+		}
+		return file;
+	}
+
+	// check if the file is the shared directory, or under it, after resolving `.` and `..` in its path.
+	private boolean isShared(File file) {
+		try {
+			return file.toPath().normalize().startsWith(this.root.toPath());
+		}
+		catch (InvalidPathException e) {
+			return false;
+		}
 	}
 
 	@Override
@@ -244,7 +466,13 @@ public class WebShare extends HttpServer {
 		}
 
 		File file = request.getLocalPath();
-		if (file == null || !file.exists()) {
+		if (file == null && this.root != null) {
+			throw new HttpServer.Error(HttpURLConnection.HTTP_FORBIDDEN, "Access denied", null);
+		}
+		// uploads create the file in an existing directory, and the status of a resumable upload is queried on the file.
+		String query = request.getQuery();
+		boolean upload = METHOD_PUT.equals(request.method) || METHOD_PATCH.equals(request.method) || (query != null && ("&" + query).contains("&" + UPLOAD + "="));
+		if (file == null || !(upload ? file.getParentFile() != null && file.getParentFile().isDirectory() : file.exists())) {
 			throw new HttpServer.Error(404, "File not found", null);
 		}
 
@@ -260,16 +488,34 @@ public class WebShare extends HttpServer {
 			}
 			String value = Utils.toString(body);
 			if (!Utils.isNullOrEmpty(value)) {
-				File file = new File(request.getLocalPath(), value);
-
-				if (file.exists()) {
-					throw new HttpServer.Error("File already exists.");
-				}
+				// one folder per line.
+				final List<File> files = new ArrayList<>();
+				for (String fileName : value.split("[\r\n]+")) {
+					fileName = fileName.trim();
+					if (fileName.isEmpty()) {
+						continue;
+					}
 
-				log("created: `%s`", file.getAbsolutePath());
-				if (!file.mkdirs()) {
-					throw new HttpServer.Error("Can not create folder.");
+					File file = this.getNamedFile(request, fileName);
+					if (file.exists()) {
+						throw new HttpServer.Error("File already exists.");
+					}
+					files.add(file);
 				}
+				this.submitJob(request, POST_CMD_MK_DIR, files, new JobScheduler.Task() {
+					@Override
+					public void run(JobScheduler.Job job) {
+						job.setTotal(files.size());
+						for (File file : files) {
+							if (!file.mkdirs()) {
+								job.addError("Can not create folder: " + file.getName());
+								continue;
+							}
+							log("created: `%s`", file.getAbsolutePath());
+							job.progress(1, 0);
+						}
+					}
+				});
 			}
 		}
 
@@ -279,21 +525,30 @@ public class WebShare extends HttpServer {
 			}
 			String value = Utils.toString(body);
 			if (!Utils.isNullOrEmpty(value)) {
+				final List<File> files = new ArrayList<>();
 				for (String fileName : value.split("[\r\n]+")) {
 					fileName = fileName.trim();
 					if (fileName.isEmpty()) {
 						continue;
 					}
 
-					File file = new File(request.getLocalPath(), fileName);
+					File file = this.getNamedFile(request, fileName);
 					if (!file.exists()) {
 						throw new HttpServer.Error("File does not exists: " + fileName);
 					}
-					if (!file.delete()) {
-						throw new HttpServer.Error("Can not delete file: " + fileName);
-					}
-					log("deleted: `%s`", file.getAbsolutePath());
+					files.add(file);
 				}
+				// directories are deleted with their content.
+				this.submitJob(request, POST_CMD_DELETE, files, new JobScheduler.Task() {
+					@Override
+					public void run(JobScheduler.Job job) {
+						for (File file : files) {
+							if (WebShare.this.jobs.deleteTree(file.toPath(), job)) {
+								log("deleted: `%s`", file.getAbsolutePath());
+							}
+						}
+					}
+				});
 			}
 		}
 
@@ -307,9 +562,9 @@ public class WebShare extends HttpServer {
 						continue;
 					}
 
-					File file = request.getLocalPath(fileName);
+					File file = this.getNamedFile(request, fileName);
 					if (!file.exists()) {
-						throw new java.lang.Error("File does not exists: " + file.getAbsolutePath());
+						throw new HttpServer.Error(HttpURLConnection.HTTP_NOT_FOUND, "File does not exists: " + fileName, null);
 					}
 					toZip.add(file);
 				}
@@ -320,6 +575,22 @@ public class WebShare extends HttpServer {
 			}
 		}
 
+		else if (STORE.equals(name)) {
+			request.putExtra(STORE, true);
+		}
+
+		else if (PREBUILD.equals(name)) {
+			request.putExtra(PREBUILD, true);
+		}
+
+		else if (JOB.equals(name)) {
+			String id = Utils.toString(body);
+			if (!id.matches("[0-9]{0,19}")) {
+				throw new HttpServer.Error("Invalid job id: " + id);
+			}
+			request.putExtra(JOB, id);
+		}
+
 		else if (RECURSIVE.equals(name)) {
 			if (!request.getLocalPath().isDirectory()) {
 				throw new HttpServer.Error("Must recurse directories.");
@@ -327,6 +598,57 @@ public class WebShare extends HttpServer {
 			request.putExtra(RECURSIVE, true);
 		}
 
+		else if (SEARCH.equals(name)) {
+			String query = Utils.toString(body).trim();
+			if (query.isEmpty()) {
+				throw new HttpServer.Error("Empty search query");
+			}
+			if (this.fileIndex == null) {
+				throw new HttpServer.Error(404, "Search is not enabled", null);
+			}
+			if (!request.getLocalPath().isDirectory()) {
+				throw new HttpServer.Error("Must search directories.");
+			}
+			request.putExtra(SEARCH, query);
+		}
+
+		else if (FORMAT.equals(name)) {
+			String format = Utils.toString(body);
+			// archive formats apply to downloads, listings are rendered as html.
+			if (!FORMAT_HTML.equals(format) && !FORMAT_JSON.equals(format) && !FORMAT_ZIP.equals(format) && !FORMAT_TAR.equals(format) && !FORMAT_TAR_GZ.equals(format)) {
+				throw new HttpServer.Error("Invalid format: " + format);
+			}
+			request.putExtra(FORMAT, format);
+		}
+
+		else if (OFFSET.equals(name)) {
+			request.putExtra(OFFSET, parseCount(name, Utils.toString(body)));
+		}
+
+		else if (LIMIT.equals(name)) {
+			int limit = parseCount(name, Utils.toString(body));
+			if (limit == 0) {
+				throw new HttpServer.Error("Invalid limit: 0");
+			}
+			request.putExtra(LIMIT, limit);
+		}
+
+		else if (SORT.equals(name)) {
+			String sort = Utils.toString(body);
+			if (!SORT_NAME.equals(sort) && !SORT_SIZE.equals(sort) && !SORT_DATE.equals(sort)) {
+				throw new HttpServer.Error("Invalid sort order: " + sort);
+			}
+			request.putExtra(SORT, sort);
+		}
+
+		else if (UPLOAD.equals(name)) {
+			String id = Utils.toString(body);
+			if (!id.matches("[A-Za-z0-9_-]{1,64}")) {
+				throw new HttpServer.Error("Invalid upload id: " + id);
+			}
+			request.putExtra(UPLOAD, id);
+		}
+
 		else if (POST_CMD_FILENAME.equals(name)) {
 			request.putExtra(POST_CMD_FILENAME, Utils.toString(body));
 		}
@@ -345,21 +667,32 @@ public class WebShare extends HttpServer {
 			if (fileName == null) {
 				fileName = UUID.randomUUID().toString();
 			}
-			File file = new File(request.getLocalPath(), fileName);
+			File file = this.getNamedFile(request, fileName);
 
 			if (file.exists()) {
 				throw new HttpServer.Error("File already exists.");
 			}
 
-			FileOutputStream out = null;
+			FileChannel out = null;
 			try {
 				long time = System.currentTimeMillis();
-				out = new FileOutputStream(file);
-				Utils.copyStream(out, body);
+				out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				MessageDigest digest = ContentIndex.newDigest();
+				long length = Utils.receiveFile(body, out, digest);
+				out.close();
+				this.indexUpload(file, ContentIndex.toHex(digest.digest()));
 				time = System.currentTimeMillis() - time;
-				log("uploaded [%s @ %s]: `%s`", Utils.formatSize(file.length()), Utils.formatSpeed(file.length(), time), file.getAbsolutePath());
+				request.setRoute(ROUTE_UPLOAD);
+				metrics.uploads.increment();
+				metrics.uploadBytes.add(length);
+				log("uploaded [%s @ %s]: `%s`", Utils.formatSize(length), Utils.formatSpeed(length, time), file.getAbsolutePath());
 			}
 			catch (IOException e) {
+				// do not leave a partial file behind.
+				if (out != null) {
+					Utils.close(out);
+					file.delete();
+				}
 				throw new HttpServer.Error(e);
 			}
 			finally {
@@ -372,14 +705,78 @@ public class WebShare extends HttpServer {
 		}
 	}
 
+	/**
+	 * Write a chunk of a resumable upload, identified by the `upload` param, at the offset given by its Content-Range.
+	 * The chunks can be sent in any order, in parallel, the file is created when the last byte is received.
+	 * Without upload id, the whole body is the content of the file.
+	 */
+	@Override
+	public void processUpload(Request request, InputStream body) throws HttpServer.Error {
+		if (readOnly) {
+			throw new HttpServer.Error("Write support is not enabled");
+		}
+		String id = (String) request.getExtra(UPLOAD);
+		if (id == null) {
+			this.putFile(request, body);
+			return;
+		}
+
+		String contentRange = request.getFirstHeader(CONTENT_RANGE);
+		HttpRange chunk = HttpRange.parseContentRange(contentRange);
+		if (chunk == null) {
+			throw new HttpServer.Error("Invalid Content-Range: " + contentRange);
+		}
+		String contentLength = request.getFirstHeader(CONTENT_LENGTH);
+		if (contentLength != null && !contentLength.trim().equals(Long.toString(chunk.length()))) {
+			throw new HttpServer.Error("Content-Length does not match Content-Range");
+		}
+
+		File file = request.getLocalPath();
+		request.setRoute(ROUTE_UPLOAD);
+		try {
+			ResumableUploads.Upload upload = this.uploads.write(id, file, HttpRange.parseCompleteLength(contentRange), chunk, body);
+			request.putExtra(UPLOAD_STATUS, upload);
+			metrics.uploadBytes.add(chunk.length());
+			if (upload.isComplete()) {
+				metrics.uploads.increment();
+				log("uploaded [%s in chunks]: `%s`", Utils.formatSize(upload.length), file.getAbsolutePath());
+			}
+		}
+		catch (IOException e) {
+			throw new HttpServer.Error(e);
+		}
+	}
+
 	@Override
 	public long writeResponse(Response response, Exception error) throws IOException {
 		File file = response.getLocalPath();
 
+		// paths outside the shared directory have no listing to show the error on.
+		if (file == null) {
+			response.setRoute(ROUTE_ERROR);
+			response.setResponseCode(getErrorCode(error));
+			response.write(String.format("%d %s", getErrorCode(error), error != null ? error.getMessage() : "Access denied"));
+			return -1;
+		}
+
+		// uploads, and status queries, are answered in json.
+		if (response.getExtra(UPLOAD) != null || METHOD_PUT.equals(response.getMethod()) || METHOD_PATCH.equals(response.getMethod())) {
+			return this.writeUpload(response, error);
+		}
+
+		// job status queries, and the jobs started by the request are answered in json to json clients.
+		JobScheduler.Job job = (JobScheduler.Job) response.getExtra(JOB_STATUS);
+		if (response.getExtra(JOB) != null || (job != null && this.isJsonRequested(response))) {
+			return this.writeJob(response, job, error);
+		}
+
 		File[] download = (File[]) response.getExtra(DOWNLOAD);
 
 		// requested download.
 		if (download != null) {
+			if (response.getExtra(PREBUILD) != null) {
+				return this.writePrebuild(response, download);
+			}
 			String zipName = file.getName();
 
 			// in case of a single file
@@ -390,6 +787,7 @@ public class WebShare extends HttpServer {
 				}
 				else {
 					// do not zip a single file, just download it
+					response.setRoute(ROUTE_FILE);
 					return response.write(file.getName(), file);
 				}
 			}
@@ -398,94 +796,696 @@ public class WebShare extends HttpServer {
 				zipName = this.getClass().getSimpleName();
 			}
 
-			return response.writeZip(zipName + ".zip", download);
+			response.setRoute(ROUTE_ARCHIVE);
+			String format = (String) response.getExtra(FORMAT);
+			if (FORMAT_TAR.equals(format)) {
+				return response.writeTar(zipName + ".tar", false, download);
+			}
+			if (FORMAT_TAR_GZ.equals(format)) {
+				return response.writeTar(zipName + ".tar.gz", true, download);
+			}
+			return response.writeZip(zipName + ".zip", response.getExtra(STORE) != null, download);
 		}
 
 		if (file.isFile()) {
+			response.setRoute(ROUTE_FILE);
 			return response.write(null, file);
 		}
 
-		template.reset();
-		if (response.getExtra(RECURSIVE) != null) {
-			Utils.processFilesRecursive(".", file, new Utils.FileProcessor() {
+		// the listing shows the changes of the jobs finishing quickly.
+		String jobMessage = this.awaitJob(job);
+
+		if (error != null) {
+			response.setRoute(ROUTE_ERROR);
+		}
+		else if (METHOD_GET.equals(response.getMethod())) {
+			response.setRoute(response.getExtra(SEARCH) != null ? ROUTE_SEARCH : ROUTE_LISTING);
+		}
+
+		// the format is negotiated unless requested with a parameter.
+		String format = (String) response.getExtra(FORMAT);
+		if (format == null) {
+			response.getHeaders().add(VARY, ACCEPT);
+			format = acceptsJson(response.getRequestHeader(ACCEPT)) ? FORMAT_JSON : FORMAT_HTML;
+		}
+		boolean json = FORMAT_JSON.equals(format);
+
+		// a listing changes only if the content of the directory changes, or a file in it is modified.
+		if (error == null && response.getExtra(RECURSIVE) == null && response.getExtra(SEARCH) == null) {
+			DirectoryCache.Listing listing = this.getListing(response, file);
+			String entityTag = listing != null ? listing.getEntityTag() : getWeakEntityTag(file);
+			if (json) {
+				entityTag = entityTag.substring(0, entityTag.length() - 1) + "-json\"";
+			}
+			response.setContentType(json ? CONTENT_TYPE_JSON_CHARSET : CONTENT_TYPE_TEXT_HTML_CHARSET);
+			if (response.checkNotModified(entityTag, listing != null ? listing.getLastModified() : file.lastModified())) {
+				return 0;
+			}
+		}
+
+		if (error != null) {
+			response.setResponseCode(getErrorCode(error));
+		}
+
+		if (json) {
+			return this.writeJson(response, file, error);
+		}
+
+		final HtmlTemplate.Renderer page = response.write(template);
+		if (error != null) {
+			HtmlTemplate.Renderer message = page.block("errorRow");
+			if (message != null) {
+				message.set("message", error.getMessage());
+				message.write();
+			}
+		}
+		else if (jobMessage != null) {
+			HtmlTemplate.Renderer message = page.block("jobRow");
+			if (message != null) {
+				message.set("message", jobMessage);
+				message.write();
+			}
+		}
+
+		final HtmlTemplate.Renderer fileRow = page.block("fileRowFile");
+		if (fileRow == null) {
+			page.close();
+			return 0;
+		}
+
+		if (response.getExtra(SEARCH) != null) {
+			String query = (String) response.getExtra(SEARCH);
+			List<FileIndex.Match> matches = this.fileIndex.search(this.getRelativePath(file), query, getLimit(response));
+			if (matches != null) {
+				int idx = 0;
+				for (FileIndex.Match match : matches) {
+					FileEntry entry = readEntry(file, match);
+					if (entry == null) {
+						continue;
+					}
+					fileRow.set("name", match.path);
+					fileRow.set("href", Utils.encodeUriPath(match.path) + (entry.directory ? "/" : ""));
+					fileRow.set("size", entry.directory ? "download" : Utils.formatSize(entry.length));
+					fileRow.set("date", Utils.formatDate(entry.lastModified));
+					fileRow.set("oddRow", idx % 2 != 0);
+					fileRow.write();
+					idx += 1;
+				}
+			}
+
+			String message = this.getSearchMessage(matches, getLimit(response));
+			if (message != null) {
+				HtmlTemplate.Renderer truncated = page.block("truncatedRow");
+				if (truncated != null) {
+					truncated.set("message", message);
+					truncated.write();
+				}
+			}
+		}
+		else if (response.getExtra(RECURSIVE) != null) {
+			String truncated = this.treeWalker.walk(".", file.toPath(), new Utils.FileProcessor() {
 				int idx = 0;
 
 				@Override
-				public void onFile(String path, File file) {
-					HtmlTemplate fileRow = template.add("fileRowFile");
-					if (fileRow != null) {
-						fileRow.set("name", path);
-						fileRow.set("href", Utils.encodeUri(path));
-						fileRow.set("size", Utils.formatSize(file.length()));
-						fileRow.set("date", Utils.formatDate(file.lastModified()));
-						fileRow.set("oddRow", idx % 2 != 0);
-					}
+				public void onFile(String path, Path local, FileEntry file) throws IOException {
+					fileRow.set("name", path);
+					fileRow.set("href", Utils.encodeUri(path));
+					fileRow.set("size", Utils.formatSize(file.length));
+					fileRow.set("date", Utils.formatDate(file.lastModified));
+					fileRow.set("oddRow", idx % 2 != 0);
+					fileRow.write();
 					idx += 1;
 				}
 
 				@Override
-				public boolean onDirectory(String path, File file) {
+				public boolean onDirectory(String path, FileEntry file) {
 					// process dubdirectories
 					return true;
 				}
 
 				@Override
-				public void onError(String path, File file, Exception error) {
-					HtmlTemplate fileRow = template.add("fileRowFile");
-					if (fileRow != null) {
-						fileRow.set("name", file.getAbsolutePath());
-						fileRow.set("href", "javascript:void(0);");
-						fileRow.set("size", "Error");
-						fileRow.set("date", "Error");
-						fileRow.set("oddRow", idx % 2 != 0);
-					}
+				public void onError(String path, Path file, IOException error) throws IOException {
+					fileRow.set("name", file.toAbsolutePath().toString());
+					fileRow.set("href", "javascript:void(0);");
+					fileRow.set("size", "Error");
+					fileRow.set("date", "Error");
+					fileRow.set("oddRow", idx % 2 != 0);
+					fileRow.write();
 					idx += 1;
 				}
 			});
+
+			if (truncated != null) {
+				HtmlTemplate.Renderer message = page.block("truncatedRow");
+				if (message != null) {
+					message.set("message", truncated);
+					message.write();
+				}
+			}
 		}
 		else {
-			File[] files = file.listFiles();
-			if (files != null) {
-				Arrays.sort(files, new Comparator<File>() {
-					@Override
-					public int compare(File lhs, File rhs) {
-						// Directories on top
-						if (lhs.isDirectory() != rhs.isDirectory()) {
-							return lhs.isDirectory() ? -1 : 1;
-						}
-						return lhs.getName().compareToIgnoreCase(rhs.getName());
+			DirectoryCache.Listing listing = this.getListing(response, file);
+			if (listing != null) {
+				String sort = getSort(response);
+				int offset = getOffset(response);
+				int limit = getLimit(response);
+
+				// only the default view is kept rendered.
+				boolean defaultView = SORT_NAME.equals(sort) && offset == 0 && limit == PAGE_SIZE;
+				String rows = defaultView ? listing.getRows() : null;
+				if (rows != null) {
+					page.append(rows);
+				}
+				else {
+					FileEntry[] entries = listing.window(getSortOrder(sort), offset, limit);
+					if (defaultView) {
+						StringWriter buffer = new StringWriter();
+						this.writeRows(template.render("fileRowFile", buffer), entries, 0);
+						rows = buffer.toString();
+						listing.setRows(rows);
+						page.append(rows);
 					}
-				});
+					else {
+						this.writeRows(fileRow, entries, offset);
+					}
+				}
 
-				int idx = 0;
-				for (File f : files) {
-					HtmlTemplate fileRow = template.add("fileRowFile");
-					if (fileRow != null) {
-						fileRow.set("name", f.getName());
-						if (f.isDirectory()) {
-							fileRow.set("href", Utils.encodeUri(f.getName()) + "/");
-							fileRow.set("size", "download");
-						}
-						else {
-							fileRow.set("href", Utils.encodeUri(f.getName()));
-							fileRow.set("size", Utils.formatSize(f.length()));
-						}
-						fileRow.set("date", Utils.formatDate(f.lastModified()));
-						fileRow.set("oddRow", idx % 2 != 0);
+				// link to the next page, loaded by the client on demand.
+				long next = (long) offset + limit;
+				if (next < listing.entries.length) {
+					HtmlTemplate.Renderer more = page.block("moreRow");
+					if (more != null) {
+						more.set("href", String.format("?%s=%s&amp;%s=%d&amp;%s=%d", SORT, sort, OFFSET, next, LIMIT, limit));
+						more.set("remaining", String.valueOf(listing.entries.length - next));
+						more.write();
 					}
-					idx += 1;
 				}
 			}
 		}
 
+		page.close();
+		return 0;
+	}
+
+	/**
+	 * Write the body of the request to a new file, through a hidden temporary file moved in place once complete.
+	 * The free space is checked before receiving anything if the Content-Length is known.
+	 */
+	private void putFile(Request request, InputStream body) throws HttpServer.Error {
+		File file = request.getLocalPath();
+		if (file.exists()) {
+			throw new HttpServer.Error("File already exists.");
+		}
+		long length = -1;
+		String contentLength = request.getFirstHeader(CONTENT_LENGTH);
+		if (contentLength != null) {
+			try {
+				length = Long.parseLong(contentLength.trim());
+			}
+			catch (NumberFormatException e) {
+				throw new HttpServer.Error("Invalid Content-Length: " + contentLength);
+			}
+		}
+		File directory = file.getParentFile();
+		if (length > directory.getUsableSpace()) {
+			throw new HttpServer.Error("Not enough space for " + Utils.formatSize(length));
+		}
+
+		request.setRoute(ROUTE_UPLOAD);
+		String announced = ContentIndex.parseDigestHeader(request.getFirstHeader(DIGEST));
+		if (announced != null) {
+			try {
+				// the content is already stored, the body is not needed.
+				File copy = this.contentIndex.link(file, announced);
+				if (copy != null) {
+					request.putExtra(UPLOAD_HASH, announced);
+					metrics.uploads.increment();
+					log("uploaded [linked]: `%s` to `%s`", file.getAbsolutePath(), copy.getAbsolutePath());
+					return;
+				}
+			}
+			catch (IOException e) {
+				throw new HttpServer.Error(e);
+			}
+		}
+
+		File temp = new File(directory, "." + file.getName() + "." + UUID.randomUUID() + ".upload");
+		FileChannel out = null;
+		try {
+			long time = System.currentTimeMillis();
+			out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			MessageDigest digest = ContentIndex.newDigest();
+			long received = Utils.receiveFile(body, out, 0, length >= 0 ? length : Long.MAX_VALUE, digest);
+			if (length >= 0 && received < length) {
+				throw new EOFException("Upload truncated at " + received + " of " + length + " bytes");
+			}
+			out.close();
+			String hash = ContentIndex.toHex(digest.digest());
+			if (announced != null && !announced.equals(hash)) {
+				throw new HttpServer.Error(HttpURLConnection.HTTP_BAD_REQUEST, "Content does not match the Digest", null);
+			}
+			Utils.moveNew(temp, file);
+			this.indexUpload(file, hash);
+			request.putExtra(UPLOAD_HASH, hash);
+			time = System.currentTimeMillis() - time;
+			metrics.uploads.increment();
+			metrics.uploadBytes.add(received);
+			log("uploaded [%s @ %s]: `%s`", Utils.formatSize(received), Utils.formatSpeed(received, time), file.getAbsolutePath());
+		}
+		catch (IOException e) {
+			throw new HttpServer.Error(e);
+		}
+		finally {
+			Utils.close(out);
+			temp.delete();
+		}
+	}
+
+	// run the task in the background, the job is reported in the response.
+	private void submitJob(Request request, String type, List<File> files, JobScheduler.Task task) throws HttpServer.Error {
+		// a single file is the target of the job, otherwise the directory.
+		String target = this.getRelativePath(files.size() == 1 ? files.get(0) : request.getLocalPath());
+		try {
+			request.putExtra(JOB_STATUS, this.jobs.submit(type, target, task));
+		}
+		catch (IOException e) {
+			throw new HttpServer.Error(HttpURLConnection.HTTP_UNAVAILABLE, e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Wait a little for the job started by the request.
+	 * @return a message if the job is still running or failed, null if it completed or there is no job.
+	 */
+	private String awaitJob(JobScheduler.Job job) {
+		if (job == null) {
+			return null;
+		}
+		try {
+			if (!job.await(JOB_WAIT_MILLIS)) {
+				return String.format("%s of `%s` continues in the background, job: %s", job.type, job.target, job.id);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return job.getError();
+	}
+
+	// start building the requested archive in the cache, the response is the status of the job.
+	private long writePrebuild(Response response, File[] files) throws IOException {
+		String format = (String) response.getExtra(FORMAT);
+		JobScheduler.Job job = null;
+		if (!FORMAT_TAR.equals(format) && response.getExtra(STORE) == null) {
+			job = response.prebuild(FORMAT_TAR_GZ.equals(format), files);
+		}
+		if (job == null) {
+			return this.writeJob(response, null, new HttpServer.Error("Only compressed archives fitting in the archive cache are prebuilt"));
+		}
+		response.putExtra(JOB_STATUS, job);
+		return this.writeJob(response, job, null);
+	}
+
+	// write the status of a job, or of all the jobs if no id is given; a job started by the request is accepted.
+	private long writeJob(Response response, JobScheduler.Job job, Exception error) throws IOException {
+		response.setRoute(ROUTE_JOB);
+		String id = (String) response.getExtra(JOB);
+		List<JobScheduler.Job> list = null;
 		if (error != null) {
-			HtmlTemplate message = template.add("errorRow");
+			response.setResponseCode(getErrorCode(error));
+		}
+		else if (job == null && id.isEmpty()) {
+			list = this.jobs.list();
+		}
+		else if (job == null) {
+			job = this.jobs.get(id);
+			if (job == null) {
+				response.setResponseCode(HttpURLConnection.HTTP_NOT_FOUND);
+				error = new HttpServer.Error("Unknown job: " + id);
+			}
+		}
+		else if (job == response.getExtra(JOB_STATUS) && job.getFinished() == 0) {
+			response.setResponseCode(HttpURLConnection.HTTP_ACCEPTED);
+		}
+
+		JsonWriter out = response.writeJson();
+		if (error != null) {
+			out.beginObject();
+			out.name("error").value(error.getMessage());
+			out.endObject();
+		}
+		else if (list != null) {
+			out.beginObject();
+			out.name("jobs").beginArray();
+			for (JobScheduler.Job entry : list) {
+				writeJob(out, entry);
+			}
+			out.endArray();
+			out.endObject();
+		}
+		else {
+			writeJob(out, job);
+		}
+		out.close();
+		return 0;
+	}
+
+	private static void writeJob(JsonWriter out, JobScheduler.Job job) throws IOException {
+		JobScheduler.Status status = job.getStatus();
+		out.beginObject();
+		out.name("id").value(job.id);
+		out.name("type").value(job.type);
+		out.name("target").value(job.target);
+		out.name("state").value(status.state);
+		out.name("done").value(status.done);
+		if (status.total >= 0) {
+			out.name("total").value(status.total);
+		}
+		out.name("bytes").value(status.bytes);
+		if (status.errors > 0) {
+			out.name("errors").value(status.errors);
+			out.name("error").value(status.error);
+		}
+		if (status.started > 0) {
+			out.name("started").value(status.started);
+		}
+		if (status.finished > 0) {
+			out.name("finished").value(status.finished);
+		}
+		out.name("href").value("?" + JOB + "=" + job.id);
+		out.endObject();
+	}
+
+	// index the hash of an uploaded file, replaced by a link if the same content is already stored.
+	private void indexUpload(File file, String hash) {
+		File copy = this.contentIndex.deduplicate(file, hash);
+		if (copy != null) {
+			log("upload: `%s` linked to `%s`", file.getAbsolutePath(), copy.getAbsolutePath());
+		}
+		this.contentIndex.put(file, hash);
+	}
+
+	// write the created file, or the state of a resumable upload: the received ranges, start inclusive and end exclusive.
+	private long writeUpload(Response response, Exception error) throws IOException {
+		response.setRoute(ROUTE_UPLOAD);
+		if (response.getExtra(UPLOAD) == null && error == null) {
+			// the file was created from the body of the request.
+			File file = response.getLocalPath();
+			response.setResponseCode(HttpURLConnection.HTTP_CREATED);
+			JsonWriter out = response.writeJson();
+			out.beginObject();
+			out.name("path").value(this.getRelativePath(file));
+			out.name("length").value(file.length());
+			out.name("sha256").value((String) response.getExtra(UPLOAD_HASH));
+			out.endObject();
+			out.close();
+			return 0;
+		}
+
+		ResumableUploads.Upload upload = (ResumableUploads.Upload) response.getExtra(UPLOAD_STATUS);
+		if (upload == null && error == null) {
+			String id = (String) response.getExtra(UPLOAD);
+			upload = this.uploads.get(response.getLocalPath(), id);
+			if (upload == null) {
+				response.setResponseCode(HttpURLConnection.HTTP_NOT_FOUND);
+				error = new HttpServer.Error("Unknown upload: " + id);
+			}
+		}
+		else if (error != null) {
+			response.setResponseCode(getErrorCode(error));
+		}
+		else if (upload.isComplete()) {
+			response.setResponseCode(HttpURLConnection.HTTP_CREATED);
+		}
+
+		JsonWriter out = response.writeJson();
+		out.beginObject();
+		if (error != null) {
+			out.name("error").value(error.getMessage());
+		}
+		else {
+			out.name("id").value(upload.id);
+			out.name("path").value(this.getRelativePath(upload.target));
+			out.name("length").value(upload.length);
+			out.name("received").value(upload.getReceived());
+			out.name("complete").value(upload.isComplete());
+			out.name("ranges").beginArray();
+			for (long[] range : upload.getRanges()) {
+				out.beginArray().value(range[0]).value(range[1]).endArray();
+			}
+			out.endArray();
+		}
+		out.endObject();
+		out.close();
+		return 0;
+	}
+
+	// write the listing as a json document, entries are sent as they are listed.
+	private long writeJson(Response response, File file, Exception error) throws IOException {
+		final JsonWriter out = response.writeJson();
+		out.beginObject();
+		if (error != null) {
+			out.name("error").value(error.getMessage());
+		}
+		else if (response.getExtra(SEARCH) != null) {
+			String query = (String) response.getExtra(SEARCH);
+			List<FileIndex.Match> matches = this.fileIndex.search(this.getRelativePath(file), query, getLimit(response));
+			out.name("entries").beginArray();
+			if (matches != null) {
+				for (FileIndex.Match match : matches) {
+					FileEntry entry = readEntry(file, match);
+					if (entry != null) {
+						this.writeEntry(out, match.path, entry, file.toPath().resolve(match.path));
+					}
+				}
+			}
+			out.endArray();
+			String message = this.getSearchMessage(matches, getLimit(response));
 			if (message != null) {
-				message.set("message", error.getMessage());
+				out.name("truncated").value(message);
+			}
+		}
+		else if (response.getExtra(RECURSIVE) != null) {
+			out.name("entries").beginArray();
+			String truncated = this.treeWalker.walk(".", file.toPath(), new Utils.FileProcessor() {
+				@Override
+				public void onFile(String path, Path local, FileEntry file) throws IOException {
+					WebShare.this.writeEntry(out, getRelativePath(path), file, local);
+				}
+
+				@Override
+				public boolean onDirectory(String path, FileEntry file) throws IOException {
+					if (!".".equals(path)) {
+						WebShare.this.writeEntry(out, getRelativePath(path), file, null);
+					}
+					return true;
+				}
+
+				@Override
+				public void onError(String path, Path file, IOException error) throws IOException {
+					out.beginObject();
+					out.name("name").value(getRelativePath(path));
+					out.name("type").value("error");
+					out.name("error").value(String.valueOf(error.getMessage()));
+					out.endObject();
+				}
+			});
+			out.endArray();
+			if (truncated != null) {
+				out.name("truncated").value(truncated);
+			}
+		}
+		else {
+			DirectoryCache.Listing listing = this.getListing(response, file);
+			if (listing == null) {
+				out.name("error").value("Can not list content of: " + file.getName());
+			}
+			else {
+				String sort = getSort(response);
+				int offset = getOffset(response);
+				int limit = getLimit(response);
+				out.name("total").value(listing.entries.length);
+				out.name("offset").value(offset);
+				out.name("entries").beginArray();
+				for (FileEntry entry : listing.window(getSortOrder(sort), offset, limit)) {
+					this.writeEntry(out, entry.name, entry, file.toPath().resolve(entry.name));
+				}
+				out.endArray();
+
+				long next = (long) offset + limit;
+				if (next < listing.entries.length) {
+					out.name("next").value(String.format("?%s=%s&%s=%s&%s=%d&%s=%d", FORMAT, FORMAT_JSON, SORT, sort, OFFSET, next, LIMIT, limit));
+				}
+			}
+		}
+		out.endObject();
+		out.close();
+		return 0;
+	}
+
+	/**
+	 * A file named by a parameter, relative to the directory of the request, ex: the files to delete.
+	 * Names from recursive and search listings are relative paths, they must stay strictly under the directory.
+	 */
+	private File getNamedFile(Request request, String name) throws HttpServer.Error {
+		File directory = request.getLocalPath();
+		boolean valid = !name.isEmpty() && !".".equals(name);
+		for (String element : name.split("[/\\\\]")) {
+			if ("..".equals(element)) {
+				valid = false;
+			}
+		}
+		if (valid) {
+			File file = new File(directory, name);
+			try {
+				Path path = file.toPath().normalize();
+				if (this.isShared(file) && !path.equals(this.root.toPath()) && !path.equals(directory.toPath().normalize())) {
+					return path.toFile();
+				}
+			}
+			catch (InvalidPathException e) {
+				// not a valid name.
+			}
+		}
+		throw new HttpServer.Error(HttpURLConnection.HTTP_FORBIDDEN, "Invalid name: " + name, null);
+	}
+
+	// the listing of the directory, listed once for the validators and the content of the response.
+	private DirectoryCache.Listing getListing(Response response, File directory) {
+		DirectoryCache.Listing listing = (DirectoryCache.Listing) response.getExtra(LISTING);
+		if (listing == null) {
+			listing = this.directoryCache.get(directory);
+			response.putExtra(LISTING, listing);
+		}
+		return listing;
+	}
+
+	// response code of a failed request, internal error unless the error has its own code.
+	private static int getErrorCode(Exception error) {
+		if (error instanceof HttpServer.Error) {
+			return ((HttpServer.Error) error).getResponseCode();
+		}
+		return HttpURLConnection.HTTP_INTERNAL_ERROR;
+	}
+
+	// path of a local file relative to the shared directory.
+	private String getRelativePath(File file) {
+		return this.root.toPath().relativize(file.toPath().normalize()).toString().replace(File.separatorChar, '/');
+	}
+
+	// read the attributes of a search result, null if it was removed meanwhile.
+	private static FileEntry readEntry(File directory, FileIndex.Match match) {
+		try {
+			Path path = directory.toPath().resolve(match.path);
+			return new FileEntry(match.path, Files.readAttributes(path, BasicFileAttributes.class));
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	// explain why search results might be incomplete.
+	private String getSearchMessage(List<FileIndex.Match> matches, int limit) {
+		if (!this.fileIndex.isReady()) {
+			return "the index is being built, results may be incomplete";
+		}
+		if (matches == null) {
+			return "the directory is not indexed";
+		}
+		if (matches.size() >= limit) {
+			return String.format("only the first %d results are listed", limit);
+		}
+		return null;
+	}
+
+	// write an entry of a listing, with the hash of the content if it is indexed.
+	private void writeEntry(JsonWriter out, String path, FileEntry entry, Path local) throws IOException {
+		out.beginObject();
+		out.name("name").value(path);
+		out.name("type").value(entry.directory ? "directory" : "file");
+		if (!entry.directory) {
+			out.name("size").value(entry.length);
+			String hash = this.contentIndex.getHash(local, entry.length, entry.lastModified);
+			if (hash != null) {
+				out.name("sha256").value(hash);
+			}
+		}
+		out.name("mtime").value(entry.lastModified);
+		out.name("href").value(Utils.encodeUriPath(path) + (entry.directory ? "/" : ""));
+		out.endObject();
+	}
+
+	// path of a recursive walk, without the leading `./`
+	private static String getRelativePath(String path) {
+		return path.startsWith("./") ? path.substring(2) : path;
+	}
+
+	// check if the response is requested in json, with the format param or the Accept header.
+	private boolean isJsonRequested(Response response) {
+		String format = (String) response.getExtra(FORMAT);
+		if (format != null) {
+			return FORMAT_JSON.equals(format);
+		}
+		return acceptsJson(response.getRequestHeader(ACCEPT));
+	}
+
+	// check if the Accept header prefers json over html.
+	private static boolean acceptsJson(String accept) {
+		return accept != null && accept.contains(CONTENT_TYPE_JSON) && !accept.contains("text/html");
+	}
+
+	private static String getSort(Response response) {
+		return Utils.coalesce((String) response.getExtra(SORT), SORT_NAME);
+	}
+
+	private static int getOffset(Response response) {
+		Object offset = response.getExtra(OFFSET);
+		return offset != null ? (Integer) offset : 0;
+	}
+
+	private static int getLimit(Response response) {
+		Object limit = response.getExtra(LIMIT);
+		return limit != null ? (Integer) limit : PAGE_SIZE;
+	}
+
+	private static Comparator<FileEntry> getSortOrder(String sort) {
+		if (SORT_SIZE.equals(sort)) {
+			return FileEntry.BY_SIZE;
+		}
+		if (SORT_DATE.equals(sort)) {
+			return FileEntry.BY_DATE;
+		}
+		return FileEntry.DIRECTORIES_FIRST;
+	}
+
+	private static int parseCount(String name, String value) throws HttpServer.Error {
+		try {
+			int result = Integer.parseInt(value.trim());
+			if (result >= 0) {
+				return result;
+			}
+		}
+		catch (NumberFormatException ignore) {}
+		throw new HttpServer.Error(String.format("Invalid %s: %s", name, value));
+	}
+
+	// render a row for each entry of a directory listing.
+	private void writeRows(HtmlTemplate.Renderer fileRow, FileEntry[] entries, int idx) throws IOException {
+		for (FileEntry entry : entries) {
+			fileRow.set("name", entry.name);
+			if (entry.directory) {
+				fileRow.set("href", Utils.encodeUri(entry.name) + "/");
+				fileRow.set("size", "download");
+			}
+			else {
+				fileRow.set("href", Utils.encodeUri(entry.name));
+				fileRow.set("size", Utils.formatSize(entry.length));
 			}
-			response.setResponseCode(HttpURLConnection.HTTP_INTERNAL_ERROR);
+			fileRow.set("date", Utils.formatDate(entry.lastModified));
+			fileRow.set("oddRow", idx % 2 != 0);
+			fileRow.write();
+			idx += 1;
 		}
-		return response.write(template);
 	}
 
 	@Override
@@ -0,0 +1,258 @@
+package kmz.webshare;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Zip archive of stored entries, laid out before anything is sent.
+ * The length is known upfront, and any range of the archive is written by mapping the offsets back to the files,
+ * so downloads can be resumed. The content of a file is copied through the heap only to compute its checksum,
+ * checksums are cached by path, size and modification time, then the content is sent with `transferFile`.
+ */
+public class ZipArchive implements HttpServer.Content {
+
+	private static final int MAX_CHECKSUMS = 256 << 10;
+
+	// checksums of the files, valid while the size and the modification time are unchanged.
+	private static final Map<Path, Checksum> checksums = new LinkedHashMap<Path, Checksum>(16, .75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, Checksum> eldest) {
+			return this.size() > MAX_CHECKSUMS;
+		}
+	};
+
+	private static class Checksum {
+		final long length;
+		final long lastModified;
+		final long crc;
+
+		Checksum(long length, long lastModified, long crc) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.crc = crc;
+		}
+	}
+
+	// an entry of the archive, and the file it is read from.
+	private static class Item {
+		final ZipWriter.Entry entry;
+		final Path path;
+		final long lastModified;
+		// the checksum of the entry is known.
+		boolean checked;
+		// position of the record in the central directory.
+		long central;
+
+		Item(ZipWriter.Entry entry, Path path, long lastModified) {
+			this.entry = entry;
+			this.path = path;
+			this.lastModified = lastModified;
+			// directories have no content.
+			this.checked = path == null;
+		}
+	}
+
+	private final List<Item> items = new ArrayList<>();
+	private final long lastModified;
+	private final String entityTag;
+	private long centralOffset;
+	private long centralSize;
+	private long length;
+
+	// lay out the listed files as stored entries.
+	public ZipArchive(ArchiveListing listing) {
+		for (ArchiveListing.Item item : listing.getItems()) {
+			ZipWriter.Entry entry;
+			if (item.path == null) {
+				entry = new ZipWriter.Entry(item.name + '/', item.file.lastModified, true, true, 0);
+			}
+			else {
+				entry = new ZipWriter.Entry(item.name, item.file.lastModified, false, true, item.file.length);
+			}
+			entry.size = entry.length;
+			entry.compressedSize = entry.length;
+			this.items.add(new Item(entry, item.path, item.file.lastModified));
+		}
+		this.lastModified = listing.getLastModified();
+		this.entityTag = "\"" + listing.getFingerprint() + "\"";
+		this.layout();
+	}
+
+	// length of the archive in bytes.
+	public long getLength() {
+		return this.length;
+	}
+
+	// most recent modification of the archived files.
+	public long getLastModified() {
+		return this.lastModified;
+	}
+
+	// strong entity tag, the same files result in the same bytes.
+	public String getEntityTag() {
+		return this.entityTag;
+	}
+
+	private void layout() {
+		long offset = 0;
+		for (Item item : this.items) {
+			ZipWriter.Entry entry = item.entry;
+			entry.offset = offset;
+			offset += entry.localHeader().length + entry.length;
+			if (!entry.directory) {
+				offset += entry.dataDescriptor().length;
+			}
+		}
+
+		this.centralOffset = offset;
+		for (Item item : this.items) {
+			item.central = offset;
+			// the length of the record does not depend on the checksum.
+			offset += item.entry.centralHeader().length;
+		}
+		this.centralSize = offset - this.centralOffset;
+		this.length = offset + ZipWriter.end(this.items.size(), this.centralOffset, this.centralSize).length;
+	}
+
+	/**
+	 * Write `count` bytes of the archive starting at `position`.
+	 * File content is sent directly from the file if its checksum is already known,
+	 * the checksum is computed while sending if the whole content is requested,
+	 * otherwise the file is read again only if the range includes its checksum.
+	 */
+	@Override
+	public void transfer(long position, long count, OutputStream out) throws IOException {
+		long end = position + count;
+
+		int index = this.find(position, false);
+		for (; index < this.items.size() && position < end && position < this.centralOffset; index += 1) {
+			Item item = this.items.get(index);
+			ZipWriter.Entry entry = item.entry;
+			byte[] header = entry.localHeader();
+			position = Utils.writePart(header, entry.offset, position, end, out);
+
+			long contentStart = entry.offset + header.length;
+			long contentEnd = contentStart + entry.length;
+			if (position < end && position < contentEnd) {
+				long length = Math.min(end, contentEnd) - position;
+				this.writeContent(item, position - contentStart, length, out);
+				position += length;
+			}
+			if (position < end && !entry.directory) {
+				this.check(item);
+				position = Utils.writePart(entry.dataDescriptor(), contentEnd, position, end, out);
+			}
+		}
+
+		index = this.find(position, true);
+		for (; index < this.items.size() && position < end; index += 1) {
+			Item item = this.items.get(index);
+			this.check(item);
+			position = Utils.writePart(item.entry.centralHeader(), item.central, position, end, out);
+		}
+
+		if (position < end) {
+			byte[] record = ZipWriter.end(this.items.size(), this.centralOffset, this.centralSize);
+			Utils.writePart(record, this.centralOffset + this.centralSize, position, end, out);
+		}
+	}
+
+	// index of the entry, or the central directory record, containing the position.
+	private int find(long position, boolean central) {
+		int low = 0;
+		int high = this.items.size() - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			Item item = this.items.get(mid);
+			if ((central ? item.central : item.entry.offset) <= position) {
+				low = mid;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private void writeContent(Item item, long position, long count, OutputStream out) throws IOException {
+		this.lookup(item);
+		try (FileChannel in = FileChannel.open(item.path)) {
+			if (!item.checked && position == 0 && count == item.entry.length) {
+				item.entry.crc = copy(in, item.entry.length, out);
+				this.store(item);
+				return;
+			}
+			// the file must not be shorter than announced.
+			Utils.transferFile(in, position, count, out);
+		}
+	}
+
+	// make sure the checksum of the entry is known, reading the file if needed.
+	private void check(Item item) throws IOException {
+		this.lookup(item);
+		if (item.checked) {
+			return;
+		}
+		try (FileChannel in = FileChannel.open(item.path)) {
+			item.entry.crc = copy(in, item.entry.length, null);
+		}
+		this.store(item);
+	}
+
+	private void lookup(Item item) {
+		if (item.checked) {
+			return;
+		}
+		Checksum checksum;
+		synchronized (checksums) {
+			checksum = checksums.get(item.path);
+		}
+		if (checksum != null && checksum.length == item.entry.length && checksum.lastModified == item.lastModified) {
+			item.entry.crc = checksum.crc;
+			item.checked = true;
+		}
+	}
+
+	private void store(Item item) {
+		item.checked = true;
+		Checksum checksum = new Checksum(item.entry.length, item.lastModified, item.entry.crc);
+		synchronized (checksums) {
+			checksums.put(item.path, checksum);
+		}
+	}
+
+	/**
+	 * Compute the checksum of the first `length` bytes of the file, and copy them to the output if not null.
+	 * The length was announced in the archive: a file truncated meanwhile is padded with zeros.
+	 */
+	private static long copy(FileChannel in, long length, OutputStream out) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[(int) Math.min(64 << 10, Math.max(length, 1))];
+		long position = 0;
+		boolean truncated = false;
+		while (position < length) {
+			int count = (int) Math.min(buffer.length, length - position);
+			int read = truncated ? -1 : in.read(ByteBuffer.wrap(buffer, 0, count), position);
+			if (read < 0) {
+				truncated = true;
+				Arrays.fill(buffer, 0, count, (byte) 0);
+				read = count;
+			}
+			crc.update(buffer, 0, read);
+			if (out != null) {
+				out.write(buffer, 0, read);
+			}
+			position += read;
+		}
+		return crc.getValue();
+	}
+}
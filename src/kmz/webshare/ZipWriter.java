@@ -0,0 +1,643 @@
+package kmz.webshare;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streamed zip archive, the files are compressed in parallel like pigz does for gzip.
+ * Files are split in blocks deflated by a pool of workers, each block primed with the last 32 KB of the previous one,
+ * the compressed blocks are written in order by the calling thread, resulting in a single valid archive.
+ * Sizes and checksums follow the content in data descriptors, ZIP64 records are used only when needed.
+ * Upcoming blocks are read and compressed ahead of the output while their buffers fit in the memory limit.
+ */
+public class ZipWriter implements Closeable {
+
+	// uncompressed size of a block, as in pigz.
+	private static final int BLOCK_SIZE = 128 << 10;
+	// deflate can refer back at most 32 KB.
+	private static final int DICTIONARY_SIZE = 32 << 10;
+	// blocks waiting to be written by an archive, limits the open files and queued tasks for small files.
+	private static final int MAX_PENDING = 1024;
+	// sizes and offsets above this need ZIP64 records.
+	private static final long ZIP64_LIMIT = 0xffffffffL;
+	// the compressed content of an entry can be slightly larger than its size.
+	private static final long ZIP64_MARGIN = 1 << 20;
+
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int DATA_DESCRIPTOR = 0x08074b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int ZIP64_END = 0x06064b50;
+	private static final int ZIP64_LOCATOR = 0x07064b50;
+	private static final int END = 0x06054b50;
+	private static final int ZIP64_EXTRA = 0x0001;
+
+	// sizes and checksum in a data descriptor after the content
+	private static final int DESCRIPTOR = 0x0008;
+	// names encoded in utf-8
+	private static final int UTF8 = 0x0800;
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+	private static final int VERSION = 20;
+	private static final int VERSION_ZIP64 = 45;
+	private static final int ATTRIBUTE_DIRECTORY = 0x10;
+
+	static final ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "zip-deflate");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+
+	// memory of the blocks read ahead by all the archives being written.
+	private static final AtomicLong buffered = new AtomicLong();
+	private static volatile long maxBuffered = 64 << 20;
+
+	// limit the memory used to compress ahead of the output, shared by all the archives.
+	public static void setMaxMemory(long bytes) {
+		maxBuffered = bytes;
+	}
+
+	private final OutputStream out;
+	private final Deque<Block> pending = new ArrayDeque<>();
+	// central directory records, written at the end of the archive.
+	private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+	private long entries = 0;
+	private long written = 0;
+	private boolean finished = false;
+
+	public ZipWriter(OutputStream out) {
+		this.out = new BufferedOutputStream(out, 64 << 10);
+	}
+
+	// bytes written to the output so far.
+	public long getLength() {
+		return this.written;
+	}
+
+	// add the listed files and directories.
+	public void add(ArchiveListing listing) throws IOException {
+		for (ArchiveListing.Item item : listing.getItems()) {
+			if (item.path == null) {
+				this.addDirectory(item.name, item.file);
+			}
+			else {
+				this.addFile(item.name, item.path, item.file);
+			}
+		}
+	}
+
+	// store the file without compression, ex: media files, which are already compressed.
+	protected boolean isStored(Path path) {
+		return false;
+	}
+
+	private void addDirectory(String name, FileEntry file) throws IOException {
+		Entry entry = new Entry(name + '/', file.lastModified, true, true, 0);
+		this.submit(new Block(entry, null, null, 0, 0, true));
+	}
+
+	private void addFile(String name, Path path, FileEntry file) throws IOException {
+		Entry entry = new Entry(name, file.lastModified, false, this.isStored(path), file.length);
+		Block previous = null;
+		long position = 0;
+		do {
+			int length = (int) Math.min(BLOCK_SIZE, file.length - position);
+			boolean last = position + length >= file.length;
+			Block block = new Block(entry, path, previous, position, length, last);
+			this.submit(block);
+			previous = block;
+			position += length;
+		}
+		while (position < file.length);
+	}
+
+	// queue the block to be compressed, writing the oldest ones while the limits are reached.
+	private void submit(Block block) throws IOException {
+		while (!this.pending.isEmpty() && (this.pending.size() >= MAX_PENDING || buffered.get() + block.reserved > maxBuffered)) {
+			this.write(this.pending.poll());
+		}
+		buffered.addAndGet(block.reserved);
+		this.pending.add(block);
+		if (block.path != null) {
+			block.future = pool.submit(block);
+		}
+	}
+
+	// wait for the block to be compressed, and write it to the output.
+	private void write(Block block) throws IOException {
+		try {
+			if (block.future != null) {
+				block.future.get();
+			}
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted while compressing", e);
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Compression failed: " + block.path, e.getCause());
+		}
+		finally {
+			buffered.addAndGet(-block.reserved);
+		}
+
+		Entry entry = block.entry;
+		if (entry.skipped) {
+			return;
+		}
+		if (block.error != null) {
+			if (block.first) {
+				// nothing was written yet, leave out the file.
+				WebShare.log(block.error, "zip: skipping `%s`", block.path);
+				entry.skipped = true;
+				return;
+			}
+			if (!block.inherited) {
+				// the rest of the content could not be read, the entry is shorter.
+				WebShare.log(block.error, "zip: truncated `%s`", block.path);
+			}
+		}
+
+		if (block.first) {
+			this.writeLocalHeader(entry);
+		}
+		if (block.output != null) {
+			this.out.write(block.output, 0, block.outputLength);
+			this.written += block.outputLength;
+			entry.crc = crc32Combine(entry.crc, block.crc, block.inputLength);
+			entry.size += block.inputLength;
+			entry.compressedSize += block.outputLength;
+		}
+		if (block.last) {
+			if (!entry.directory) {
+				this.writeDataDescriptor(entry);
+			}
+			this.writeCentralHeader(entry);
+		}
+	}
+
+	private void writeLocalHeader(Entry entry) throws IOException {
+		entry.offset = this.written;
+		this.writeRecord(entry.localHeader());
+	}
+
+	private void writeDataDescriptor(Entry entry) throws IOException {
+		this.writeRecord(entry.dataDescriptor());
+	}
+
+	// the central directory record of the entry, kept in memory until the end of the archive.
+	private void writeCentralHeader(Entry entry) throws IOException {
+		this.central.write(entry.centralHeader());
+		this.entries += 1;
+	}
+
+	// write the remaining entries and the central directory.
+	public void finish() throws IOException {
+		while (!this.pending.isEmpty()) {
+			this.write(this.pending.poll());
+		}
+
+		long offset = this.written;
+		long size = this.central.size();
+		this.central.writeTo(this.out);
+		this.written += size;
+		this.writeRecord(end(this.entries, offset, size));
+		this.out.flush();
+		this.finished = true;
+	}
+
+	// close the output, an unfinished archive is abandoned: blocks not yet compressed are cancelled.
+	@Override
+	public void close() throws IOException {
+		for (Block block : this.pending) {
+			if (block.future != null) {
+				block.future.cancel(false);
+			}
+			buffered.addAndGet(-block.reserved);
+		}
+		this.pending.clear();
+		if (this.finished) {
+			this.out.close();
+		}
+		else {
+			Utils.close(this.out);
+		}
+	}
+
+	private void writeRecord(byte[] record) throws IOException {
+		this.out.write(record);
+		this.written += record.length;
+	}
+
+	/**
+	 * End of central directory record, preceded by the ZIP64 end record and locator if needed.
+	 * @param entries number of entries in the central directory.
+	 * @param offset position of the central directory in the archive.
+	 * @param size length of the central directory.
+	 */
+	static byte[] end(long entries, long offset, long size) {
+		boolean zip64 = entries >= 0xffff || offset >= ZIP64_LIMIT || size >= ZIP64_LIMIT;
+		byte[] record = new byte[(zip64 ? 56 + 20 : 0) + 22];
+		int pos = 0;
+		if (zip64) {
+			pos = putInt(record, pos, ZIP64_END);
+			pos = putLong(record, pos, 44);
+			pos = putShort(record, pos, VERSION_ZIP64);
+			pos = putShort(record, pos, VERSION_ZIP64);
+			pos = putInt(record, pos, 0);
+			pos = putInt(record, pos, 0);
+			pos = putLong(record, pos, entries);
+			pos = putLong(record, pos, entries);
+			pos = putLong(record, pos, size);
+			pos = putLong(record, pos, offset);
+
+			pos = putInt(record, pos, ZIP64_LOCATOR);
+			pos = putInt(record, pos, 0);
+			pos = putLong(record, pos, offset + size);
+			pos = putInt(record, pos, 1);
+		}
+		pos = putInt(record, pos, END);
+		pos = putShort(record, pos, 0);
+		pos = putShort(record, pos, 0);
+		pos = putShort(record, pos, (int) Math.min(entries, 0xffff));
+		pos = putShort(record, pos, (int) Math.min(entries, 0xffff));
+		pos = putInt(record, pos, (int) Math.min(size, ZIP64_LIMIT));
+		pos = putInt(record, pos, (int) Math.min(offset, ZIP64_LIMIT));
+		putShort(record, pos, 0);
+		return record;
+	}
+
+	private static int putShort(byte[] buffer, int pos, int value) {
+		buffer[pos] = (byte) value;
+		buffer[pos + 1] = (byte) (value >> 8);
+		return pos + 2;
+	}
+
+	private static int putInt(byte[] buffer, int pos, int value) {
+		pos = putShort(buffer, pos, value);
+		return putShort(buffer, pos, value >> 16);
+	}
+
+	private static int putLong(byte[] buffer, int pos, long value) {
+		pos = putInt(buffer, pos, (int) value);
+		return putInt(buffer, pos, (int) (value >> 32));
+	}
+
+	// ms-dos date and time of the entry in the local time zone, as zip tools expect.
+	private static long dosTime(long millis) {
+		LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+		int year = time.getYear();
+		if (year < 1980) {
+			return 1 << 21 | 1 << 16;
+		}
+		if (year > 2107) {
+			year = 2107;
+		}
+		return (long) (year - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+				| time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+	}
+
+	/**
+	 * Deflate `input[start, end)`, primed with the dictionary `input[0, start)`, using the deflater of the worker.
+	 * Blocks are aligned to a byte boundary with a sync flush, so they can be concatenated, the last one ends the stream.
+	 */
+	static byte[] deflate(byte[] input, int start, int end, boolean last) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		if (start > 0) {
+			deflater.setDictionary(input, 0, start);
+		}
+		deflater.setInput(input, start, end - start);
+		if (last) {
+			deflater.finish();
+		}
+
+		byte[] output = new byte[end - start + ((end - start) >> 3) + 64];
+		int length = 0;
+		while (true) {
+			if (length == output.length) {
+				output = Arrays.copyOf(output, output.length * 2);
+			}
+			int count = deflater.deflate(output, length, output.length - length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+			length += count;
+			if (last ? deflater.finished() : length < output.length) {
+				break;
+			}
+		}
+		return Arrays.copyOf(output, length);
+	}
+
+	/**
+	 * Checksum of two concatenated parts, from the checksums of the parts and the length of the second one.
+	 * Same as `crc32_combine` of zlib: the first checksum is shifted over `length` zero bytes by repeated squaring of the crc operator.
+	 */
+	static long crc32Combine(long crc1, long crc2, long length) {
+		if (length <= 0) {
+			return crc1;
+		}
+		long[] even = new long[32];
+		long[] odd = new long[32];
+
+		// operator for one zero bit
+		odd[0] = 0xedb88320L;
+		long row = 1;
+		for (int n = 1; n < 32; n += 1) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		// operators for two and four zero bits
+		gf2MatrixSquare(even, odd);
+		gf2MatrixSquare(odd, even);
+
+		// apply one zero byte, then double the operator for each bit of the length.
+		do {
+			gf2MatrixSquare(even, odd);
+			if ((length & 1) != 0) {
+				crc1 = gf2MatrixTimes(even, crc1);
+			}
+			length >>= 1;
+			if (length == 0) {
+				break;
+			}
+			gf2MatrixSquare(odd, even);
+			if ((length & 1) != 0) {
+				crc1 = gf2MatrixTimes(odd, crc1);
+			}
+			length >>= 1;
+		}
+		while (length != 0);
+		return crc1 ^ crc2;
+	}
+
+	private static long gf2MatrixTimes(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector != 0; i += 1, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+
+	private static void gf2MatrixSquare(long[] square, long[] matrix) {
+		for (int n = 0; n < 32; n += 1) {
+			square[n] = gf2MatrixTimes(matrix, matrix[n]);
+		}
+	}
+
+	// a file or directory of the archive, and its records.
+	static class Entry {
+		final byte[] name;
+		final long dosTime;
+		final boolean directory;
+		final int method;
+		// size of a stored entry, announced in the local header.
+		final long length;
+		// sizes are written with 8 bytes.
+		final boolean zip64;
+		long offset;
+		long crc = 0;
+		long size = 0;
+		long compressedSize = 0;
+		// the file could not be read.
+		boolean skipped = false;
+
+		Entry(String name, long lastModified, boolean directory, boolean stored, long length) {
+			this.name = name.getBytes(StandardCharsets.UTF_8);
+			this.dosTime = dosTime(lastModified);
+			this.directory = directory;
+			this.method = directory || stored ? STORED : DEFLATED;
+			this.length = length;
+			this.zip64 = length + ZIP64_MARGIN >= ZIP64_LIMIT;
+		}
+
+		byte[] localHeader() {
+			byte[] record = new byte[30 + this.name.length + (this.zip64 ? 20 : 0)];
+			// the checksum follows the content, and the size too if the entry is compressed.
+			long size = this.method == STORED ? this.length : 0;
+			int pos = 0;
+			pos = putInt(record, pos, LOCAL_HEADER);
+			pos = putShort(record, pos, this.zip64 ? VERSION_ZIP64 : VERSION);
+			pos = putShort(record, pos, this.directory ? UTF8 : UTF8 | DESCRIPTOR);
+			pos = putShort(record, pos, this.method);
+			pos = putInt(record, pos, (int) this.dosTime);
+			pos = putInt(record, pos, 0);
+			pos = putInt(record, pos, this.zip64 ? (int) ZIP64_LIMIT : (int) size);
+			pos = putInt(record, pos, this.zip64 ? (int) ZIP64_LIMIT : (int) size);
+			pos = putShort(record, pos, this.name.length);
+			pos = putShort(record, pos, this.zip64 ? 20 : 0);
+			System.arraycopy(this.name, 0, record, pos, this.name.length);
+			pos += this.name.length;
+			if (this.zip64) {
+				pos = putShort(record, pos, ZIP64_EXTRA);
+				pos = putShort(record, pos, 16);
+				pos = putLong(record, pos, size);
+				putLong(record, pos, size);
+			}
+			return record;
+		}
+
+		byte[] dataDescriptor() {
+			byte[] record = new byte[this.zip64 ? 24 : 16];
+			int pos = 0;
+			pos = putInt(record, pos, DATA_DESCRIPTOR);
+			pos = putInt(record, pos, (int) this.crc);
+			if (this.zip64) {
+				pos = putLong(record, pos, this.compressedSize);
+				putLong(record, pos, this.size);
+			}
+			else {
+				pos = putInt(record, pos, (int) this.compressedSize);
+				putInt(record, pos, (int) this.size);
+			}
+			return record;
+		}
+
+		byte[] centralHeader() {
+			boolean zip64Size = this.size >= ZIP64_LIMIT || this.compressedSize >= ZIP64_LIMIT;
+			boolean zip64Offset = this.offset >= ZIP64_LIMIT;
+			int extra = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+			if (extra > 0) {
+				extra += 4;
+			}
+			int version = extra > 0 || this.zip64 ? VERSION_ZIP64 : VERSION;
+
+			byte[] record = new byte[46 + this.name.length + extra];
+			int pos = 0;
+			pos = putInt(record, pos, CENTRAL_HEADER);
+			pos = putShort(record, pos, version);
+			pos = putShort(record, pos, version);
+			pos = putShort(record, pos, this.directory ? UTF8 : UTF8 | DESCRIPTOR);
+			pos = putShort(record, pos, this.method);
+			pos = putInt(record, pos, (int) this.dosTime);
+			pos = putInt(record, pos, (int) this.crc);
+			pos = putInt(record, pos, zip64Size ? (int) ZIP64_LIMIT : (int) this.compressedSize);
+			pos = putInt(record, pos, zip64Size ? (int) ZIP64_LIMIT : (int) this.size);
+			pos = putShort(record, pos, this.name.length);
+			pos = putShort(record, pos, extra);
+			// comment, disk, internal attributes
+			pos = putShort(record, pos, 0);
+			pos = putShort(record, pos, 0);
+			pos = putShort(record, pos, 0);
+			pos = putInt(record, pos, this.directory ? ATTRIBUTE_DIRECTORY : 0);
+			pos = putInt(record, pos, zip64Offset ? (int) ZIP64_LIMIT : (int) this.offset);
+			System.arraycopy(this.name, 0, record, pos, this.name.length);
+			pos += this.name.length;
+			if (extra > 0) {
+				pos = putShort(record, pos, ZIP64_EXTRA);
+				pos = putShort(record, pos, extra - 4);
+				if (zip64Size) {
+					pos = putLong(record, pos, this.size);
+					pos = putLong(record, pos, this.compressedSize);
+				}
+				if (zip64Offset) {
+					putLong(record, pos, this.offset);
+				}
+			}
+			return record;
+		}
+	}
+
+	/**
+	 * A part of a file, read and compressed by a worker.
+	 * The last 32 KB of the previous block are used as dictionary, so the blocks of a file are read in order,
+	 * and only the compression runs in parallel. The deflate stream of a block ends on a byte boundary,
+	 * with an empty stored block, so the compressed blocks can be concatenated; the last block ends the stream.
+	 */
+	private static class Block implements Runnable {
+		final Entry entry;
+		final Path path;
+		final boolean first;
+		final long position;
+		final int length;
+		final boolean last;
+		// memory used by the buffers of the block until it is written.
+		final long reserved;
+		// the block was read, and its tail is available as dictionary for the next one.
+		final CountDownLatch read = new CountDownLatch(1);
+		Future<?> future;
+		// released once read, not to keep all the blocks of a file.
+		Block previous;
+
+		byte[] tail;
+		byte[] output;
+		int outputLength;
+		int inputLength;
+		long crc;
+		IOException error;
+		// the error happened in a previous block.
+		boolean inherited = false;
+
+		Block(Entry entry, Path path, Block previous, long position, int length, boolean last) {
+			this.entry = entry;
+			this.path = path;
+			this.first = previous == null;
+			this.previous = previous;
+			this.position = position;
+			this.length = length;
+			this.last = last;
+			this.reserved = path == null ? 0 : 1024 + 2L * (DICTIONARY_SIZE + length + (length >> 3));
+		}
+
+		@Override
+		public void run() {
+			boolean stored = this.entry.method == STORED;
+			byte[] dictionary = new byte[0];
+			if (this.previous != null) {
+				try {
+					// started before this one, it will not wait.
+					this.previous.read.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (!stored) {
+					dictionary = this.previous.tail;
+				}
+				if (this.previous.error != null) {
+					// do not read past a failure, end the content.
+					this.error = this.previous.error;
+					this.inherited = true;
+				}
+				this.previous.tail = null;
+				this.previous = null;
+			}
+
+			byte[] input = Arrays.copyOf(dictionary, dictionary.length + this.length);
+			int end = dictionary.length;
+			if (this.error == null) {
+				try {
+					end += read(this.path, this.position, input, end);
+				}
+				catch (IOException e) {
+					this.error = e;
+				}
+			}
+			if (stored) {
+				// the size is announced in the local header, missing content is padded with zeros.
+				end = input.length;
+			}
+			else {
+				this.tail = Arrays.copyOfRange(input, Math.max(0, end - DICTIONARY_SIZE), end);
+			}
+			this.inputLength = end - dictionary.length;
+			this.read.countDown();
+
+			CRC32 crc = new CRC32();
+			crc.update(input, dictionary.length, this.inputLength);
+			this.crc = crc.getValue();
+			if (stored) {
+				this.output = input;
+				this.outputLength = input.length;
+			}
+			else {
+				this.output = deflate(input, dictionary.length, end, this.last);
+				this.outputLength = this.output.length;
+			}
+		}
+
+		// read the part of the file, fewer bytes are returned if the file was truncated meanwhile.
+		private static int read(Path path, long position, byte[] buffer, int offset) throws IOException {
+			try (FileChannel channel = FileChannel.open(path)) {
+				ByteBuffer target = ByteBuffer.wrap(buffer, offset, buffer.length - offset);
+				while (target.hasRemaining()) {
+					int count = channel.read(target, position + target.position() - offset);
+					if (count < 0) {
+						break;
+					}
+				}
+				return target.position() - offset;
+			}
+		}
+	}
+}